@@ -1,24 +1,140 @@
     package org.example;
 
-    import java.util.Objects;
+    import java.io.BufferedReader;
+    import java.io.BufferedWriter;
+    import java.io.IOException;
+    import java.io.InputStream;
+    import java.io.InputStreamReader;
+    import java.io.OutputStream;
+    import java.io.PrintStream;
+    import java.io.UncheckedIOException;
+    import java.lang.invoke.MethodHandles;
+    import java.lang.invoke.VarHandle;
+    import java.lang.management.ManagementFactory;
+    import java.net.InetAddress;
+    import java.net.InetSocketAddress;
+    import java.net.ServerSocket;
+    import java.net.Socket;
+    import java.nio.ByteBuffer;
+    import java.nio.MappedByteBuffer;
+    import java.nio.LongBuffer;
+    import java.nio.channels.FileChannel;
+    import java.nio.channels.SelectionKey;
+    import java.nio.channels.Selector;
+    import java.nio.channels.ServerSocketChannel;
+    import java.nio.channels.SocketChannel;
+    import java.nio.charset.StandardCharsets;
+    import java.nio.file.DirectoryStream;
+    import java.nio.file.Files;
+    import java.nio.file.Path;
+    import java.nio.file.Paths;
+    import java.nio.file.StandardOpenOption;
+    import java.util.ArrayList;
+    import java.util.Arrays;
+    import java.util.HashMap;
+    import java.util.Iterator;
+    import java.util.LinkedHashMap;
+    import java.util.List;
+    import java.util.Map;
     import java.util.Scanner;
+    import java.util.SplittableRandom;
+    import java.util.concurrent.ArrayBlockingQueue;
+    import java.util.concurrent.BlockingQueue;
+    import java.util.concurrent.ConcurrentLinkedQueue;
+    import java.util.concurrent.CountDownLatch;
+    import java.util.concurrent.ExecutionException;
+    import java.util.concurrent.ExecutorService;
+    import java.util.concurrent.Executors;
+    import java.util.concurrent.ForkJoinPool;
+    import java.util.concurrent.Future;
+    import java.util.concurrent.RecursiveAction;
+    import java.util.concurrent.atomic.AtomicInteger;
+    import java.util.concurrent.atomic.AtomicLongArray;
+    import java.util.concurrent.atomic.LongAccumulator;
+    import java.util.concurrent.atomic.AtomicReference;
+    import java.util.concurrent.atomic.AtomicReferenceArray;
+    import java.util.concurrent.atomic.LongAdder;
+    import java.util.concurrent.locks.Condition;
+    import java.util.concurrent.locks.ReentrantLock;
+    import java.util.function.Consumer;
+    import java.util.function.Function;
+    import java.util.function.ObjIntConsumer;
+    import java.util.function.Supplier;
+    import java.util.zip.CRC32C;
+    import javax.management.JMException;
+    import javax.management.ObjectName;
+    import jdk.jfr.Category;
+    import jdk.jfr.Event;
+    import jdk.jfr.Label;
+    import jdk.jfr.Name;
+    import jdk.jfr.Timespan;
 
     public class Main {
-        // Enum for Move Status
+        // Enum for Move Status, with the text a front end shows for it
         enum MoveStatus {
-            SUCCESS, FAILURE, ILLEGAL_MOVE;
+            SUCCESS(""),
+            FAILURE("The game is over."),
+            ILLEGAL_MOVE("Illegal move. Try again."),
+            INVALID_FORMAT("Invalid input format. Use 'e2 e4' format."),
+            INVALID_POSITION("Invalid positions. Try again."),
+            NO_PIECE("No piece at the given position."),
+            NOT_YOUR_TURN("Not your turn!"),
+            NOT_SAVED("The move could not be saved. Try again.");
+
+            private final String message;
+
+            MoveStatus(String message) {
+                this.message = message;
+            }
+
+            public String getMessage() {
+                return message;
+            }
+        }
+        // Whether a game goes on or how it ended
+        enum GameState {
+            IN_PROGRESS, CHECKMATE, STALEMATE
         }
         // Class representing a color of the pieces
         enum Color {
             WHITE, BLACK
         }
-        static class Position {
-            int row;
-            int col;
+        // Enum for the kind of piece, ordinal is used as the bitboard index
+        enum PieceType {
+            PAWN, KNIGHT, BISHOP, ROOK, QUEEN, KING
+        }
+        // Immutable square on the board. There is exactly one instance per square, obtained with
+        // Position.of, so positions can be passed around on the hot path without allocating.
+        static final class Position {
+            final int row;
+            final int col;
+            final int square; // bitboard index, row * 8 + col
+
+            // One shared Position per square, indexed like the bitboards
+            private static final Position[] SQUARES = new Position[64];
 
-            public Position(int row, int col) {
+            static {
+                for (int square = 0; square < 64; square++) {
+                    SQUARES[square] = new Position(square >> 3, square & 7);
+                }
+            }
+
+            private Position(int row, int col) {
                 this.row = row;
                 this.col = col;
+                this.square = row * 8 + col;
+            }
+
+            static Position of(int row, int col) {
+                return SQUARES[row * 8 + col];
+            }
+
+            static Position of(int square) {
+                return SQUARES[square];
+            }
+
+            public int getSquare() {
+                return square;
             }
 
             @Override
@@ -31,21 +147,13 @@
 
             @Override
             public int hashCode() {
-                return Objects.hash(row, col); // Generate hash code based on row and col
+                return square; // Unique per position and free of boxing
             }
 
             @Override
             public String toString() {
                 return String.format("Position[row=%d, col=%d]", row, col); // User-friendly representation
             }
-
-            /* public int[] getRowColDifferences(Position other) {
-                return new int[]{
-                        Math.abs(this.row - other.row),
-                        Math.abs(this.col - other.col)
-                };
-            }
-             */
         }
 
         // Abstract class representing a chess Piece
@@ -53,10 +161,15 @@
         abstract static class Piece {
             protected Color color;
             protected Position position;
+            // Ordinals of the color and type, read on every board update without a virtual call
+            final int colorIndex;
+            final int typeIndex;
 
             protected Piece(Color color, Position position) {
                 this.color = color;
                 this.position = position;
+                this.colorIndex = color.ordinal();
+                this.typeIndex = getType().ordinal();
             }
 
             public Color getColor() {
@@ -71,11 +184,31 @@
                 this.position = position;
             }
 
+            // Bitboard index of the square the piece stands on
+            public int getSquare() {
+                return position.square;
+            }
+
             // Abstract method to be implemented by each piece to define their movement behavior
             public abstract boolean isValidMove(Position newPosition, Board board);
 
+            // Kind of piece, used to pick the bitboard this piece lives in
+            public abstract PieceType getType();
+
             // Represent the piece with a symbol for drawing the board
             public abstract char getSymbol();
+
+            // Create a piece of the given type, used for promotions
+            static Piece create(PieceType type, Color color, Position position) {
+                switch (type) {
+                    case KING: return new King(color, position);
+                    case QUEEN: return new Queen(color, position);
+                    case ROOK: return new Rook(color, position);
+                    case BISHOP: return new Bishop(color, position);
+                    case KNIGHT: return new Knight(color, position);
+                    default: return new Pawn(color, position);
+                }
+            }
         }
 
         // Concrete class for King
@@ -88,12 +221,14 @@
             // Define how the King moves
             @Override
             public boolean isValidMove(Position newPosition, Board board) {
-                //Calculates the absolute difference in rows between the current position and the new position
-                int rowDiff = Math.abs(newPosition.row - this.position.row);
-                //Calculates the absolute difference in columns.
-                int colDiff = Math.abs(newPosition.col - this.position.col);
                 // King moves only one square in any direction
-                return (rowDiff <= 1 && colDiff <= 1);
+                long targets = AttackTables.KING_ATTACKS[this.position.square];
+                return (targets & (1L << newPosition.square)) != 0;
+            }
+
+            @Override
+            public PieceType getType() {
+                return PieceType.KING;
             }
 
             @Override
@@ -110,48 +245,14 @@
 
             @Override
             public boolean isValidMove(Position newPosition, Board board) {
-                //we can make func common in position class and use everywhere
-                /* int[] diffs = this.position.getRowColDifferences(newPosition);
-                int rowDiff = diffs[0];
-                int colDiff = diffs[1];
-                 */
-
-                int rowDiff = Math.abs(newPosition.row - this.position.row);
-                int colDiff = Math.abs(newPosition.col - this.position.col);
-                /*If the Bishop is at (3, 3) and tries to move to (5, 5):
-                rowDiff = Math.abs(5 - 3) = 2
-                colDiff = Math.abs(5 - 3) = 2
-                */
-                // Bishop moves diagonally
-                if (rowDiff == colDiff) {
-                    // Check if the path is clear
-                    return isPathClear(newPosition, board);
-                }
-                return false;
+                // Bishop moves diagonally until the first blocker, looked up from the magic table
+                long targets = AttackTables.bishopAttacks(this.position.square, board.getOccupied());
+                return (targets & (1L << newPosition.square)) != 0;
             }
 
-            private boolean isPathClear(Position newPosition, Board board) {
-                //calculates whether to increment or decrement the row and column
-                // indices when moving toward the new position.
-                /* (3, 3) to (5, 5):
-                    rowStep will be 1 (moving down).
-                    colStep will also be 1 (moving right).
-                */
-                int rowStep = (newPosition.row - this.position.row) > 0 ? 1 : -1;
-                int colStep = (newPosition.col - this.position.col) > 0 ? 1 : -1;
-                int row = this.position.row + rowStep;
-                int col = this.position.col + colStep;
-
-                //checks every position along the diagonal path from the current position
-                while (row != newPosition.row && col != newPosition.col) {
-                    //if it finds any piece blocking the path return false
-                    if (board.getPiece(new Position(row, col)) != null) {
-                        return false; // There's a piece blocking the path
-                    }
-                    row += rowStep;
-                    col += colStep;
-                }
-                return true;
+            @Override
+            public PieceType getType() {
+                return PieceType.BISHOP;
             }
 
             @Override
@@ -169,49 +270,14 @@
 
             @Override
             public boolean isValidMove(Position newPosition, Board board) {
-                // Calculate the difference in rows and columns
-                int rowDiff = Math.abs(newPosition.row - this.position.row);
-                int colDiff = Math.abs(newPosition.col - this.position.col);
-
-                // Rook moves in straight lines: either rows or columns must be the same
-                if (rowDiff == 0 || colDiff == 0) {
-                    return isPathClear(newPosition, board); // Check if the path is clear for the move
-                }
-                return false; // Invalid move if neither row nor column is the same
+                // Rook moves in straight lines until the first blocker, looked up from the magic table
+                long targets = AttackTables.rookAttacks(this.position.square, board.getOccupied());
+                return (targets & (1L << newPosition.square)) != 0;
             }
 
-            private boolean isPathClear(Position newPosition, Board board) {
-                // Determine the step direction for rows and columns
-                //vertical step direction
-                /*
-                * Rook located at position (4, 4)
-                * it wants to move to (4, 7)
-                * int rowStep = Integer.compare(4 - 4, 0); // rowStep = Integer.compare(0, 0) => 0
-                  int colStep = Integer.compare(7 - 4, 0); // colStep = Integer.compare(3, 0) => 1
-                  *
-                  * int row = 4 + 0; // row remains 4
-                    int col = 4 + 1; // col becomes 5
-                    * The loop will check positions (4, 5), (4, 6), and then reach (4, 7)
-                * */
-                int rowStep = Integer.compare(newPosition.row - this.position.row, 0); // 1, -1, or 0
-                // horizontal step direction
-                int colStep = Integer.compare(newPosition.col - this.position.col, 0); // 1, -1, or 0
-
-                // Start checking from the position next to the rook towards the new position
-                int row = this.position.row + rowStep;
-                int col = this.position.col + colStep;
-
-                // Loop until the rook reaches the new position
-                while (row != newPosition.row || col != newPosition.col) {
-                    // If a piece is found in the path, the move is blocked
-                    if (board.getPiece(new Position(row, col)) != null) {
-                        return false; // There's a piece blocking the path
-                    }
-                    // Move to the next position in the direction of the move
-                    row += rowStep;
-                    col += colStep;
-                }
-                return true; // The path is clear for the move
+            @Override
+            public PieceType getType() {
+                return PieceType.ROOK;
             }
 
             @Override
@@ -227,39 +293,14 @@
 
             @Override
             public boolean isValidMove(Position newPosition, Board board) {
-                // Calculate the absolute differences in rows and columns
-                int rowDiff = Math.abs(newPosition.row - this.position.row);
-                int colDiff = Math.abs(newPosition.col - this.position.col);
-
                 // Queen moves like a Rook or a Bishop
-                if (rowDiff == colDiff || rowDiff == 0 || colDiff == 0) {
-                    return isPathClear(newPosition, board);
-                }
-                return false;
+                long targets = AttackTables.queenAttacks(this.position.square, board.getOccupied());
+                return (targets & (1L << newPosition.square)) != 0;
             }
 
-            private boolean isPathClear(Position newPosition, Board board) {
-                //vertical step direction
-                // If the new position is directly above or below (same column), rowStep is set to 0.
-                //If moving down, it's set to 1; if moving up, it's set to -1.
-                int rowStep = Integer.compare(newPosition.row - this.position.row, 0);
-                // horizontal step direction
-                int colStep = Integer.compare(newPosition.col - this.position.col, 0);
-
-                // Start checking from the position next to the queen towards the new position
-                int row = this.position.row + rowStep;
-                int col = this.position.col + colStep;
-
-                // Loop until the queen reaches the new position
-                while (row != newPosition.row || col != newPosition.col) {
-                    if (board.getPiece(new Position(row, col)) != null) {
-                        return false; // There's a piece blocking the path
-                    }
-                    // Move to the next position in the direction of the move
-                    row += rowStep;
-                    col += colStep;
-                }
-                return true;
+            @Override
+            public PieceType getType() {
+                return PieceType.QUEEN;
             }
 
             @Override
@@ -275,11 +316,14 @@
 
             @Override
             public boolean isValidMove(Position newPosition, Board board) {
-                int rowDiff = Math.abs(newPosition.row - this.position.row);
-                int colDiff = Math.abs(newPosition.col - this.position.col);
-
                 // Knight moves in an "L" shape
-                return (rowDiff == 2 && colDiff == 1) || (rowDiff == 1 && colDiff == 2);
+                long targets = AttackTables.KNIGHT_ATTACKS[this.position.square];
+                return (targets & (1L << newPosition.square)) != 0;
+            }
+
+            @Override
+            public PieceType getType() {
+                return PieceType.KNIGHT;
             }
 
             @Override
@@ -301,26 +345,31 @@
                 // Normal move (one square forward)
                 if (newPosition.row == this.position.row + direction && newPosition.col == this.position.col) {
                     // Check if the destination square is empty
-                    return board.getPiece(newPosition) == null; // Must be an empty square
+                    return !board.isOccupied(newPosition.row, newPosition.col); // Must be an empty square
                 }
 
                 // Initial double move (two squares forward)
                 if (this.position.row == startRow && newPosition.row == this.position.row + 2 * direction && newPosition.col == this.position.col) {
                     // Check both squares in front for emptiness
-                    return board.getPiece(new Position(this.position.row + direction, this.position.col)) == null &&
-                            board.getPiece(newPosition) == null;
+                    return !board.isOccupied(this.position.row + direction, this.position.col) &&
+                            !board.isOccupied(newPosition.row, newPosition.col);
                 }
 
                 // Capture (diagonal move)
-                if (newPosition.row == this.position.row + direction &&
-                        Math.abs(newPosition.col - this.position.col) == 1) {
+                long captures = AttackTables.PAWN_ATTACKS[color.ordinal()][this.position.square];
+                if ((captures & (1L << newPosition.square)) != 0) {
                     // The destination must have a piece and it must be an opponent's piece
-                    return board.getPiece(newPosition) != null;
+                    return board.isOccupied(newPosition.row, newPosition.col);
                 }
 
                 return false; // Invalid move
             }
 
+            @Override
+            public PieceType getType() {
+                return PieceType.PAWN;
+            }
+
             @Override
             public char getSymbol() {
                 return color == Color.WHITE ? 'P' : 'p';
@@ -329,281 +378,6103 @@
 
 
 
-        // Singleton class for Board
-        static class Board {
-            private static Board instance;
-            private Piece[][] board;
+        // Attack tables shared by all pieces, built once when the class is loaded.
+        // Squares use the Board bit index (row * 8 + col), so row 0 / bit 0 is a8.
+        // Sliding pieces use magic bitboards: the blockers on the relevant rays are multiplied by
+        // a magic number and the top bits index a precomputed attack set.
+        // The magics were found once with a fixed-seed random search over sparse candidates.
+        static final class AttackTables {
+            static final long[] KING_ATTACKS = new long[64];
+            static final long[] KNIGHT_ATTACKS = new long[64];
+            static final long[][] PAWN_ATTACKS = new long[2][64]; // [color][square], capture squares only
+            static final long[][] BETWEEN = new long[64][64]; // squares strictly between two aligned squares
 
-            private Board() {
-                board = new Piece[8][8]; // 8x8 board
-            }
+            private static final int[][] ROOK_DIRECTIONS = {{1, 0}, {-1, 0}, {0, 1}, {0, -1}};
+            private static final int[][] BISHOP_DIRECTIONS = {{1, 1}, {1, -1}, {-1, 1}, {-1, -1}};
+
+            private static final long[] ROOK_MAGICS = {
+                    0x1080004008801020L, 0x0840092002C03000L, 0x1900200010400900L, 0x0880100008000480L,
+                    0x4200100420080200L, 0x8100020100080400L, 0x0200040110886200L, 0x0200008040220411L,
+                    0x0404800084400220L, 0x0000401000402000L, 0x0086001081220440L, 0x0408800800100280L,
+                    0x000A001201040820L, 0x8848800200840080L, 0x4001000100040200L, 0x0442000102105084L,
+                    0x9080010020804100L, 0x0040404000201009L, 0x0000808010002009L, 0x2200090021D00100L,
+                    0x0008008008040080L, 0x0004004002010040L, 0x0011040008015042L, 0x00000A0001768104L,
+                    0x0000800080204009L, 0x2010004140002001L, 0x9800200280100080L, 0x1000100080080080L,
+                    0x0050500500080100L, 0x0000020080040080L, 0x0C10010400420810L, 0x1040008200005104L,
+                    0x01808240088004A0L, 0x0882804004802000L, 0x0880402001001100L, 0x2000210409001000L,
+                    0x2000480131001500L, 0x0000800400800200L, 0x000002380C001003L, 0x4600084882000431L,
+                    0x0080002000504000L, 0x0300500020004002L, 0x0040408200220011L, 0x0010040008004040L,
+                    0x0000080004008080L, 0x0010040002008080L, 0x2012004881020004L, 0x8300842444820011L,
+                    0x0088403882010200L, 0x0820400080210100L, 0x0110910040A00300L, 0x0801100280080480L,
+                    0x0242009008200600L, 0x1002000489500200L, 0x0040800200010080L, 0x0091800041000080L,
+                    0x0000209300488001L, 0x04C1002414824001L, 0x020020000B001041L, 0x7000100004200901L,
+                    0x8002002004100802L, 0x30010002084C0007L, 0x0888221800813004L, 0x4000002840840112L
+            };
+            private static final long[] BISHOP_MAGICS = {
+                    0x20C0090901061081L, 0x0024040094030104L, 0x8210810200290200L, 0x0011040484620000L,
+                    0x0081104002221000L, 0x0009012011001350L, 0x0081010802400380L, 0x0000420210010408L,
+                    0x0008105002280050L, 0x0001028484040044L, 0x2A00880810408804L, 0x7020022282000100L,
+                    0x0084040420100A50L, 0x000401010840E000L, 0x2020020210420888L, 0x0008084202012010L,
+                    0x2010400810018800L, 0x0445122008020840L, 0x0804100808002008L, 0x0008002104110100L,
+                    0x0061005820080800L, 0x2001000200820100L, 0x480C210084010800L, 0x3004442500480420L,
+                    0x1010102240048100L, 0x00182009084220A3L, 0x8803090A10004205L, 0x0208080040202020L,
+                    0x000C044084010040L, 0x00A1010002004106L, 0x6008210020640202L, 0x1600902112860801L,
+                    0x00042008C1220200L, 0x010C042002440140L, 0x5022080200040820L, 0x0402004042940100L,
+                    0x0860108400008020L, 0x000C080022021000L, 0x0264080652822100L, 0x4005031221010401L,
+                    0x0004502410008400L, 0x000500B010A20400L, 0x0415094050080800L, 0x080000201800A104L,
+                    0x4022A80304000110L, 0x4012140802028020L, 0x40200104010100A0L, 0x12810806008B0C41L,
+                    0x0020441008080000L, 0x2002120084045420L, 0x0704020062080002L, 0x0000001084040001L,
+                    0x0322200891240200L, 0xF040200210024800L, 0x0140824832008042L, 0x000210020A004602L,
+                    0x0083042805141020L, 0x002C12009A011000L, 0x0041A00044140400L, 0x00004004020A0202L,
+                    0x0000140010020210L, 0x2864160811012200L, 0x2060080841082A17L, 0xA010041108003100L
+            };
 
-            // Singleton instance getter
-            public static Board getInstance() {
-                if (instance == null) {
-                    instance = new Board();
+            private static final long[] ROOK_MASKS = new long[64];
+            private static final int[] ROOK_SHIFTS = new int[64];
+            private static final long[][] ROOK_TABLE = new long[64][];
+            private static final long[] BISHOP_MASKS = new long[64];
+            private static final int[] BISHOP_SHIFTS = new int[64];
+            private static final long[][] BISHOP_TABLE = new long[64][];
+
+            static {
+                for (int square = 0; square < 64; square++) {
+                    int row = square / 8;
+                    int col = square % 8;
+                    KING_ATTACKS[square] = steps(row, col, new int[][]{
+                            {1, 0}, {-1, 0}, {0, 1}, {0, -1}, {1, 1}, {1, -1}, {-1, 1}, {-1, -1}});
+                    KNIGHT_ATTACKS[square] = steps(row, col, new int[][]{
+                            {2, 1}, {2, -1}, {-2, 1}, {-2, -1}, {1, 2}, {1, -2}, {-1, 2}, {-1, -2}});
+                    // White moves up (towards row 0), Black moves down
+                    PAWN_ATTACKS[Color.WHITE.ordinal()][square] = steps(row, col, new int[][]{{-1, -1}, {-1, 1}});
+                    PAWN_ATTACKS[Color.BLACK.ordinal()][square] = steps(row, col, new int[][]{{1, -1}, {1, 1}});
+                    initBetween(square, row, col);
+                    initMagic(square, ROOK_DIRECTIONS, ROOK_MAGICS[square], ROOK_MASKS, ROOK_SHIFTS, ROOK_TABLE);
+                    initMagic(square, BISHOP_DIRECTIONS, BISHOP_MAGICS[square], BISHOP_MASKS, BISHOP_SHIFTS, BISHOP_TABLE);
                 }
-                return instance;
             }
 
-            // Add a piece to the board
-            public void placePiece(Piece piece, Position position) {
-                board[position.row][position.col] = piece;
+            private AttackTables() {}
+
+            static long rookAttacks(int square, long occupied) {
+                long blockers = occupied & ROOK_MASKS[square];
+                return ROOK_TABLE[square][(int) ((blockers * ROOK_MAGICS[square]) >>> ROOK_SHIFTS[square])];
             }
 
-            // Get the piece at a given position
-            public Piece getPiece(Position position) {
-                return board[position.row][position.col];
+            static long bishopAttacks(int square, long occupied) {
+                long blockers = occupied & BISHOP_MASKS[square];
+                return BISHOP_TABLE[square][(int) ((blockers * BISHOP_MAGICS[square]) >>> BISHOP_SHIFTS[square])];
             }
 
-            // Move a piece
-            public MoveStatus movePiece(Piece piece, Position newPosition) {
-                if (piece.isValidMove(newPosition, this)) {
-                    Piece target = getPiece(newPosition);
-                    if (target == null || target.getColor() != piece.getColor()) {
-                        board[piece.position.row][piece.position.col] = null; // Clear old position
-                        piece.setPosition(newPosition); // Update piece position
-                        board[newPosition.row][newPosition.col] = piece; // Set new position
-                        return MoveStatus.SUCCESS;
+            static long queenAttacks(int square, long occupied) {
+                return rookAttacks(square, occupied) | bishopAttacks(square, occupied);
+            }
+
+            // Squares one jump away in each direction that stay on the board
+            private static long steps(int row, int col, int[][] deltas) {
+                long mask = 0L;
+                for (int[] delta : deltas) {
+                    int r = row + delta[0];
+                    int c = col + delta[1];
+                    if (r >= 0 && r < 8 && c >= 0 && c < 8) {
+                        mask |= 1L << (r * 8 + c);
                     }
                 }
-                return MoveStatus.ILLEGAL_MOVE;
+                return mask;
             }
 
-            // Draw the current state of the board
-            public void drawBoard() {
-                System.out.println("  a b c d e f g h");
-                for (int row = 0; row < 8; row++) {
-                    System.out.print((8 - row) + " ");
-                    for (int col = 0; col < 8; col++) {
-                        if (board[row][col] == null) {
-                            System.out.print(". ");
-                        } else {
-                            System.out.print(board[row][col].getSymbol() + " ");
-                        }
+            private static void initBetween(int square, int row, int col) {
+                for (int[] direction : new int[][]{{1, 0}, {-1, 0}, {0, 1}, {0, -1}, {1, 1}, {1, -1}, {-1, 1}, {-1, -1}}) {
+                    long path = 0L;
+                    int r = row + direction[0];
+                    int c = col + direction[1];
+                    while (r >= 0 && r < 8 && c >= 0 && c < 8) {
+                        BETWEEN[square][r * 8 + c] = path;
+                        path |= 1L << (r * 8 + c);
+                        r += direction[0];
+                        c += direction[1];
                     }
-                    System.out.println(8 - row);
                 }
-                System.out.println("  a b c d e f g h");
             }
-        }
-
-        // Class for Player
-        static class Player {
-            private String name;
-            private Color color;
 
-            public Player(String name, Color color) {
-                this.name = name;
-                this.color = color;
+            // Attacks along the given rays, stopping at (and including) the first blocker
+            private static long slidingAttacks(int square, long occupied, int[][] directions) {
+                long attacks = 0L;
+                for (int[] direction : directions) {
+                    int r = square / 8 + direction[0];
+                    int c = square % 8 + direction[1];
+                    while (r >= 0 && r < 8 && c >= 0 && c < 8) {
+                        long bit = 1L << (r * 8 + c);
+                        attacks |= bit;
+                        if ((occupied & bit) != 0) {
+                            break;
+                        }
+                        r += direction[0];
+                        c += direction[1];
+                    }
+                }
+                return attacks;
             }
 
-            public Color getColor() {
-                return color;
+            // Squares whose occupancy matters for a slider: the rays without the board edge at their end
+            private static long relevantMask(int square, int[][] directions) {
+                long mask = 0L;
+                for (int[] direction : directions) {
+                    int r = square / 8 + direction[0];
+                    int c = square % 8 + direction[1];
+                    while (r + direction[0] >= 0 && r + direction[0] < 8 && c + direction[1] >= 0 && c + direction[1] < 8) {
+                        mask |= 1L << (r * 8 + c);
+                        r += direction[0];
+                        c += direction[1];
+                    }
+                }
+                return mask;
             }
 
-            public String getName() {
-                return name;
+            // Fill the attack table of one square, every blocker subset of the mask lands in its magic slot
+            private static void initMagic(int square, int[][] directions, long magic, long[] masks, int[] shifts, long[][] tables) {
+                long mask = relevantMask(square, directions);
+                int shift = 64 - Long.bitCount(mask);
+                long[] table = new long[1 << Long.bitCount(mask)];
+                boolean[] used = new boolean[table.length];
+                long subset = 0L;
+                do {
+                    int index = (int) ((subset * magic) >>> shift);
+                    long attacks = slidingAttacks(square, subset, directions);
+                    if (used[index] && table[index] != attacks) {
+                        throw new IllegalStateException("Bad magic for square " + square);
+                    }
+                    used[index] = true;
+                    table[index] = attacks;
+                    subset = (subset - mask) & mask; // Carry-rippler: next subset of the mask
+                } while (subset != 0);
+                masks[square] = mask;
+                shifts[square] = shift;
+                tables[square] = table;
             }
         }
 
-        public static class GameInitializer {
-            private GameInitializer(){}
-            public static void initializePieces(Board board) {
-                // Place Kings
-                board.placePiece(new King(Color.WHITE, new Position(7, 4)), new Position(7, 4));
-                board.placePiece(new King(Color.BLACK, new Position(0, 4)), new Position(0, 4));
+        // Random 64-bit keys for Zobrist hashing; a position's key is the XOR of the keys of
+        // every piece on its square, the side to move, the castling rights and the en passant file.
+        // The seed is fixed so keys are stable across runs and can be stored (e.g. in an opening book).
+        static final class Zobrist {
+            static final long[][][] PIECE_KEYS = new long[2][6][64]; // [color][piece type][square]
+            static final long[] CASTLING_KEYS = new long[16]; // one per combination of rights
+            static final long[] EN_PASSANT_KEYS = new long[8]; // per file
+            static final long BLACK_TO_MOVE_KEY;
 
-                // Place Queens
-                board.placePiece(new Queen(Color.WHITE, new Position(7, 3)), new Position(7, 3));
-                board.placePiece(new Queen(Color.BLACK, new Position(0, 3)), new Position(0, 3));
-
-                // Place Bishops
-                board.placePiece(new Bishop(Color.WHITE, new Position(7, 2)), new Position(7, 2));
-                board.placePiece(new Bishop(Color.WHITE, new Position(7, 5)), new Position(7, 5));
-                board.placePiece(new Bishop(Color.BLACK, new Position(0, 2)), new Position(0, 2));
-                board.placePiece(new Bishop(Color.BLACK, new Position(0, 5)), new Position(0, 5));
+            static {
+                long seed = 0x2545F4914F6CDD1DL;
+                for (long[][] colorKeys : PIECE_KEYS) {
+                    for (long[] typeKeys : colorKeys) {
+                        for (int square = 0; square < 64; square++) {
+                            seed += 0x9E3779B97F4A7C15L;
+                            typeKeys[square] = mix(seed);
+                        }
+                    }
+                }
+                for (int i = 0; i < CASTLING_KEYS.length; i++) {
+                    seed += 0x9E3779B97F4A7C15L;
+                    CASTLING_KEYS[i] = mix(seed);
+                }
+                CASTLING_KEYS[0] = 0L; // no rights contributes nothing
+                for (int i = 0; i < EN_PASSANT_KEYS.length; i++) {
+                    seed += 0x9E3779B97F4A7C15L;
+                    EN_PASSANT_KEYS[i] = mix(seed);
+                }
+                seed += 0x9E3779B97F4A7C15L;
+                BLACK_TO_MOVE_KEY = mix(seed);
+            }
 
-                // Place Rooks
-                board.placePiece(new Rook(Color.WHITE, new Position(7, 0)), new Position(7, 0));
-                board.placePiece(new Rook(Color.WHITE, new Position(7, 7)), new Position(7, 7));
-                board.placePiece(new Rook(Color.BLACK, new Position(0, 0)), new Position(0, 0));
-                board.placePiece(new Rook(Color.BLACK, new Position(0, 7)), new Position(0, 7));
+            private Zobrist() {}
 
-                // Place Knights
-                board.placePiece(new Knight(Color.WHITE, new Position(7, 1)), new Position(7, 1));
-                board.placePiece(new Knight(Color.WHITE, new Position(7, 6)), new Position(7, 6));
-                board.placePiece(new Knight(Color.BLACK, new Position(0, 1)), new Position(0, 1));
-                board.placePiece(new Knight(Color.BLACK, new Position(0, 6)), new Position(0, 6));
+            static long enPassantKey(int square) {
+                return square < 0 ? 0L : EN_PASSANT_KEYS[square & 7];
+            }
 
-                // Place Pawns
-                for (int col = 0; col < 8; col++) {
-                    board.placePiece(new Pawn(Color.WHITE, new Position(6, col)), new Position(6, col));
-                    board.placePiece(new Pawn(Color.BLACK, new Position(1, col)), new Position(1, col));
-                }
+            // SplitMix64 finaliser
+            private static long mix(long z) {
+                z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+                z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+                return z ^ (z >>> 31);
             }
         }
 
+        // Class for Board, one instance per game
+        // Keeps the Piece[][] grid for the object API and mirrors it in bitboards:
+        // one 64-bit mask per colour and piece type, bit index = row * 8 + col
+        static class Board {
+            private final Piece[][] board;
+            private final long[][] pieceBitboards = new long[2][6]; // [color][piece type]
+            private final long[] colorOccupancy = new long[2]; // all pieces of one colour
+            private long occupied; // all pieces of both colours
 
-        // Class representing the Game
-        static class Game {
-            private final Board board;
-            private final Player whitePlayer;
-            private final Player blackPlayer;
-            private Player currentPlayer;
-            private boolean gameFinished = false;
+            // Castling rights bits
+            static final int WHITE_KINGSIDE = 1;
+            static final int WHITE_QUEENSIDE = 2;
+            static final int BLACK_KINGSIDE = 4;
+            static final int BLACK_QUEENSIDE = 8;
+            static final int ALL_CASTLING = 15;
+            // Rights kept when a piece leaves or lands on a square (king and rook home squares clear bits)
+            private static final int[] CASTLING_MASK = new int[64];
+            static final PieceType[] PIECE_TYPES = PieceType.values();
 
-            public Game(Player whitePlayer, Player blackPlayer) {
-                this.board = Board.getInstance();
-                this.whitePlayer = whitePlayer;
-                this.blackPlayer = blackPlayer;
-                this.currentPlayer = whitePlayer; // White starts first
+            static {
+                Arrays.fill(CASTLING_MASK, ALL_CASTLING);
+                CASTLING_MASK[squareIndex(7, 4)] &= ~(WHITE_KINGSIDE | WHITE_QUEENSIDE);
+                CASTLING_MASK[squareIndex(7, 7)] &= ~WHITE_KINGSIDE;
+                CASTLING_MASK[squareIndex(7, 0)] &= ~WHITE_QUEENSIDE;
+                CASTLING_MASK[squareIndex(0, 4)] &= ~(BLACK_KINGSIDE | BLACK_QUEENSIDE);
+                CASTLING_MASK[squareIndex(0, 7)] &= ~BLACK_KINGSIDE;
+                CASTLING_MASK[squareIndex(0, 0)] &= ~BLACK_QUEENSIDE;
             }
 
-            // Switch turns between players
-            public void switchTurn() {
-                currentPlayer = (currentPlayer == whitePlayer) ? blackPlayer : whitePlayer;
+            private Color sideToMove = Color.WHITE;
+            private int castlingRights; // WHITE_KINGSIDE | ... bits still available
+            private int enPassantSquare = -1; // square a pawn skipped over on the last move, -1 if none
+            private int halfmoveClock; // moves since the last capture or pawn move
+            private int fullmoveNumber = 1; // starts at 1 and goes up after every Black move
+            private long zobristKey; // updated incrementally with every change above
+            private long pawnKey; // Zobrist key of the pawns alone, for the pawn structure cache
+            // Material + piece-square totals (White minus Black) and game phase, see Evaluator
+            private int midgameScore;
+            private int endgameScore;
+            private int gamePhase;
+            private final int[] kingSquares = {-1, -1}; // per colour, -1 if that king is not on the board
+            private final int[] moveBuffer = new int[MoveGenerator.MAX_MOVES]; // for hasLegalMove
+            // Pieces removed by clear() or taken-back promotions, reused by obtainPiece: [color * 6 + type][]
+            private final Piece[][] spareBoardPieces = new Piece[12][10];
+            private final int[] spareCounts = new int[12];
+
+            public Board() {
+                board = new Piece[8][8]; // 8x8 board
             }
 
-            // Method to handle a move
-            public MoveStatus makeMove(Piece piece, Position newPosition) {
-                if (piece.getColor() != currentPlayer.getColor()) {
-                    System.out.println("Not your turn!");
-                    return MoveStatus.FAILURE;
+            // Independent copy of the current position with its own Piece objects. Of the undo history it takes the
+            // moves since the last capture or pawn move: enough for repetition detection, and as those captured
+            // and promoted nothing they can be taken back on the copy too.
+            public Board copy() {
+                Board copy = new Board();
+                for (int row = 0; row < 8; row++) {
+                    for (int col = 0; col < 8; col++) {
+                        Piece piece = board[row][col];
+                        if (piece != null) {
+                            Position position = Position.of(row, col);
+                            copy.placePiece(Piece.create(piece.getType(), piece.getColor(), position), position);
+                        }
+                    }
                 }
-                // Check if move is valid
-                MoveStatus moveStatus = board.movePiece(piece, newPosition);
-                if (moveStatus == MoveStatus.SUCCESS) {
-                    // After move, check if a king is captured
-                    checkKingCaptured();
+                copy.sideToMove = sideToMove;
+                copy.castlingRights = castlingRights;
+                copy.enPassantSquare = enPassantSquare;
+                copy.halfmoveClock = halfmoveClock;
+                copy.fullmoveNumber = fullmoveNumber;
+                copy.zobristKey = zobristKey;
+                int reversible = Math.min(historySize, halfmoveClock);
+                while (copy.undoMoves.length < reversible) {
+                    copy.growHistory();
+                }
+                int from = historySize - reversible;
+                System.arraycopy(undoMoves, from, copy.undoMoves, 0, reversible);
+                System.arraycopy(undoState, from, copy.undoState, 0, reversible);
+                System.arraycopy(undoKeys, from, copy.undoKeys, 0, reversible);
+                copy.historySize = reversible;
+                return copy;
+            }
 
-                    // Switch turn only if the game isn't finished
-                    if (!gameFinished) {
-                        switchTurn();
+            // Empty the board so the instance can be reused for another game; its pieces go to the pool
+            public void clear() {
+                for (Piece[] row : board) {
+                    for (int col = 0; col < 8; col++) {
+                        if (row[col] != null) {
+                            recyclePiece(row[col]);
+                            row[col] = null;
+                        }
                     }
                 }
-                return moveStatus;
+                for (long[] bitboards : pieceBitboards) {
+                    Arrays.fill(bitboards, 0L);
+                }
+                Arrays.fill(colorOccupancy, 0L);
+                occupied = 0L;
+                Arrays.fill(undoCaptured, 0, historySize, null);
+                Arrays.fill(undoPromoted, 0, historySize, null);
+                historySize = 0;
+                sideToMove = Color.WHITE;
+                castlingRights = 0;
+                enPassantSquare = -1;
+                halfmoveClock = 0;
+                fullmoveNumber = 1;
+                zobristKey = 0L;
+                pawnKey = 0L;
+                midgameScore = 0;
+                endgameScore = 0;
+                gamePhase = 0;
+                Arrays.fill(kingSquares, -1);
             }
 
-            // Check if either King is captured and declare a winner
-            private void checkKingCaptured() {
-                Piece whiteKing = findKing(Color.WHITE);
-                Piece blackKing = findKing(Color.BLACK);
+            // Index of a square in the bitboards, 0 = a8 ... 63 = h1
+            static int squareIndex(int row, int col) {
+                return row * 8 + col;
+            }
 
-                if (whiteKing == null) {
-                    System.out.println(blackPlayer.getName() + " wins! The White King was captured.");
-                    gameFinished = true;
-                } else if (blackKing == null) {
-                    System.out.println(whitePlayer.getName() + " wins! The Black King was captured.");
-                    gameFinished = true;
-                }
+            // Bit of a square in the bitboards
+            static long squareBit(int row, int col) {
+                return 1L << squareIndex(row, col);
             }
 
-            // Find a King on the board based on color
-            private Piece findKing(Color color) {
-                for (int row = 0; row < 8; row++) {
-                    for (int col = 0; col < 8; col++) {
-                        Piece piece = board.getPiece(new Position(row, col));
-                        if (piece instanceof King && piece.getColor() == color) {
-                            return piece;
-                        }
-                    }
+            // Add a piece to the board
+            public void placePiece(Piece piece, Position position) {
+                Piece old = board[position.row][position.col];
+                if (old != null) {
+                    toggleBit(old, position.row, position.col); // Replace whatever was there
+                }
+                board[position.row][position.col] = piece;
+                if (piece != null) {
+                    toggleBit(piece, position.row, position.col);
                 }
-                return null;
             }
 
-            public Player getCurrentPlayer() {
-                return currentPlayer;
+            public void placePiece(Piece piece, int square) {
+                placePiece(piece, Position.of(square));
             }
-        }
 
-        static class MoveProcessor {
-            private final Board board;
-            private final Game game;
+            // Get the piece at a given position
+            public Piece getPiece(Position position) {
+                return board[position.row][position.col];
+            }
 
-            public MoveProcessor(Board board, Game game) {
-                this.board = board;
-                this.game = game;
+            public Piece getPiece(int square) {
+                return board[square >> 3][square & 7];
             }
 
-            public boolean processMove(String move) {
-                String[] parts = move.split(" ");
-                if (parts.length != 2) {
-                    System.out.println("Invalid input format. Use 'e2 e4' format.");
-                    return false;
-                }
+            // Check a square against the occupancy mask
+            public boolean isOccupied(int row, int col) {
+                return (occupied & squareBit(row, col)) != 0;
+            }
 
-                Position from = parsePosition(parts[0]);
-                Position to = parsePosition(parts[1]);
-                if (from == null || to == null) {
-                    System.out.println("Invalid positions. Try again.");
-                    return false;
-                }
+            public long getOccupied() {
+                return occupied;
+            }
 
-                Piece piece = board.getPiece(from);
-                if (piece == null) {
-                    System.out.println("No piece at the given position.");
-                    return false;
-                }
+            public long getColorOccupancy(Color color) {
+                return colorOccupancy[color.ordinal()];
+            }
 
-                MoveStatus status = game.makeMove(piece, to);
-                if (status != MoveStatus.SUCCESS) {
-                    System.out.println("Illegal move. Try again.");
-                    return false;
-                }
+            public long getPieces(Color color, PieceType type) {
+                return pieceBitboards[color.ordinal()][type.ordinal()];
+            }
 
-                return true; // Move was successful
+            public Color getSideToMove() {
+                return sideToMove;
             }
 
-            // Convert the user input (e.g., "e2") into a board position
-            private Position parsePosition(String input) {
-                if (input.length() != 2) return null;
-                char col = input.charAt(0);
-                char row = input.charAt(1);
-                int rowPos = 8 - Character.getNumericValue(row);
-                int colPos = col - 'a';
-                if (rowPos < 0 || rowPos > 7 || colPos < 0 || colPos > 7) {
-                    return null;
+            public void setSideToMove(Color sideToMove) {
+                if (this.sideToMove != sideToMove) {
+                    zobristKey ^= Zobrist.BLACK_TO_MOVE_KEY;
                 }
-                return new Position(rowPos, colPos);
+                this.sideToMove = sideToMove;
             }
-        }
 
-        public static void main(String[] args) {
-            // Create players
-            Scanner scanner = new Scanner(System.in);
+            public int getCastlingRights() {
+                return castlingRights;
+            }
 
-            Player whitePlayer = new Player("White", Color.WHITE);
-            Player blackPlayer = new Player("Black", Color.BLACK);
+            public void setCastlingRights(int castlingRights) {
+                zobristKey ^= Zobrist.CASTLING_KEYS[this.castlingRights] ^ Zobrist.CASTLING_KEYS[castlingRights];
+                this.castlingRights = castlingRights;
+            }
 
-            // Initialize the game
-            Game game = new Game(whitePlayer, blackPlayer);
+            public int getEnPassantSquare() {
+                return enPassantSquare;
+            }
 
-            // Place initial pieces on the board
-            Board board = Board.getInstance();
+            public void setEnPassantSquare(int enPassantSquare) {
+                zobristKey ^= Zobrist.enPassantKey(this.enPassantSquare) ^ Zobrist.enPassantKey(enPassantSquare);
+                this.enPassantSquare = enPassantSquare;
+            }
 
-            // Initialize pieces using GameInitializer
-            GameInitializer.initializePieces(board);
+            // 64-bit Zobrist key of the position, kept up to date on every change
+            public long getZobristKey() {
+                return zobristKey;
+            }
 
-            // Draw the initial board
-            board.drawBoard();
+            public long getPawnKey() {
+                return pawnKey;
+            }
 
-            // Create the MoveProcessor instance
-            MoveProcessor moveProcessor = new MoveProcessor(board, game);
+            public int getMidgameScore() {
+                return midgameScore;
+            }
 
-            // Main game loop
-            while (true) {
-                Player currentPlayer = game.getCurrentPlayer();
-                System.out.println(currentPlayer.getName() + "'s move (e.g., e2 e4): ");
-                String move = scanner.nextLine();
+            public int getEndgameScore() {
+                return endgameScore;
+            }
 
-                if (move.equalsIgnoreCase("stop")) {
-                    System.out.println("Game has been stopped. Thank you for playing!");
-                    break; // Exit the loop
+            public int getGamePhase() {
+                return gamePhase;
+            }
+
+            public int getFullmoveNumber() {
+                return fullmoveNumber;
+            }
+
+            public void setFullmoveNumber(int fullmoveNumber) {
+                this.fullmoveNumber = fullmoveNumber;
+            }
+
+            public int getHalfmoveClock() {
+                return halfmoveClock;
+            }
+
+            public void setHalfmoveClock(int halfmoveClock) {
+                this.halfmoveClock = halfmoveClock;
+            }
+
+            // Pieces of the given colour that attack a square, with an explicit occupancy for x-rays
+            long attackersOf(int square, int color, long occupancy) {
+                long[] pieces = pieceBitboards[color];
+                int other = color ^ 1;
+                return (AttackTables.KNIGHT_ATTACKS[square] & pieces[PieceType.KNIGHT.ordinal()])
+                        | (AttackTables.KING_ATTACKS[square] & pieces[PieceType.KING.ordinal()])
+                        // A pawn of `color` attacks this square if a pawn of the other colour here would attack it
+                        | (AttackTables.PAWN_ATTACKS[other][square] & pieces[PieceType.PAWN.ordinal()])
+                        | (AttackTables.bishopAttacks(square, occupancy)
+                                & (pieces[PieceType.BISHOP.ordinal()] | pieces[PieceType.QUEEN.ordinal()]))
+                        | (AttackTables.rookAttacks(square, occupancy)
+                                & (pieces[PieceType.ROOK.ordinal()] | pieces[PieceType.QUEEN.ordinal()]));
+            }
+
+            public boolean isSquareAttacked(int square, Color by) {
+                return attackersOf(square, by.ordinal(), occupied) != 0;
+            }
+
+            // Square of the king of a colour, tracked on every move, or -1 if it is not on the board
+            public int getKingSquare(Color color) {
+                return kingSquares[color.ordinal()];
+            }
+
+            public boolean isInCheck(Color color) {
+                int king = kingSquares[color.ordinal()];
+                return king >= 0 && attackersOf(king, color.ordinal() ^ 1, occupied) != 0;
+            }
+
+            // True if the side to move has at least one legal move
+            public boolean hasLegalMove() {
+                return MoveGenerator.generateLegalMoves(this, moveBuffer) > 0;
+            }
+
+            public boolean isCheckmate() {
+                return isInCheck(sideToMove) && !hasLegalMove();
+            }
+
+            public boolean isStalemate() {
+                return !isInCheck(sideToMove) && !hasLegalMove();
+            }
+
+            // Undo stack, one entry per move made: the move, what it captured, the pawn it replaced on
+            // promotion and the packed castling rights / en passant square / halfmove clock before it
+            private int[] undoMoves = new int[256];
+            private Piece[] undoCaptured = new Piece[256];
+            private Piece[] undoPromoted = new Piece[256];
+            private int[] undoState = new int[256];
+            private long[] undoKeys = new long[256];
+            private int historySize;
+
+            // Number of moves on the undo stack
+            public int getHistorySize() {
+                return historySize;
+            }
+
+            // Move `index` of the undo stack, 0 being the first move made
+            public int getHistoryMove(int index) {
+                return undoMoves[index];
+            }
+
+            // True if the current position already occurred since the last capture or pawn move
+            public boolean isRepetition() {
+                int oldest = Math.max(0, historySize - halfmoveClock);
+                for (int i = historySize - 2; i >= oldest; i -= 2) {
+                    if (undoKeys[i] == zobristKey) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            // Play an encoded move (see Move) without any legality check; undo it with unmakeMove
+            public void makeMove(int move) {
+                int from = Move.from(move);
+                int to = Move.to(move);
+                int flags = Move.flags(move);
+                Piece piece = board[from >> 3][from & 7];
+                Color color = piece.getColor();
+                int capturedSquare = flags == Move.EN_PASSANT ? to + (color == Color.WHITE ? 8 : -8) : to;
+                Piece captured = board[capturedSquare >> 3][capturedSquare & 7];
+
+                if (historySize == undoMoves.length) {
+                    growHistory(); // Only for games longer than the stack, never inside a search
                 }
+                undoMoves[historySize] = move;
+                undoCaptured[historySize] = captured;
+                undoPromoted[historySize] = null;
+                undoState[historySize] = castlingRights | ((enPassantSquare + 1) << 4) | (sideToMove.ordinal() << 11)
+                        | (halfmoveClock << 12);
+                undoKeys[historySize] = zobristKey;
+                historySize++;
 
-                if (moveProcessor.processMove(move)) {
-                    board.drawBoard(); // Draw updated board after each successful move
+                if (captured != null) {
+                    removePiece(capturedSquare);
+                }
+                relocatePiece(from, to);
+                if (Move.isPromotion(move)) {
+                    undoPromoted[historySize - 1] = piece;
+                    removePiece(to);
+                    putPiece(obtainPiece(PIECE_TYPES[Move.promotionType(move)], color, Position.of(to)), to);
+                } else if (flags == Move.KING_CASTLE) {
+                    relocatePiece(to + 1, to - 1);
+                } else if (flags == Move.QUEEN_CASTLE) {
+                    relocatePiece(to - 2, to + 1);
+                }
+
+                int rights = castlingRights & CASTLING_MASK[from] & CASTLING_MASK[to];
+                int enPassant = flags == Move.DOUBLE_PAWN_PUSH ? (from + to) / 2 : -1;
+                zobristKey ^= Zobrist.CASTLING_KEYS[castlingRights] ^ Zobrist.CASTLING_KEYS[rights]
+                        ^ Zobrist.enPassantKey(enPassantSquare) ^ Zobrist.enPassantKey(enPassant);
+                if (color == sideToMove) {
+                    zobristKey ^= Zobrist.BLACK_TO_MOVE_KEY; // Out-of-turn moves leave the side to move unchanged
+                }
+                castlingRights = rights;
+                enPassantSquare = enPassant;
+                halfmoveClock = (captured != null || piece.getType() == PieceType.PAWN) ? 0 : halfmoveClock + 1;
+                if (color == Color.BLACK) {
+                    fullmoveNumber++;
+                }
+                sideToMove = color == Color.WHITE ? Color.BLACK : Color.WHITE;
+            }
+
+            // Take back the last move made with makeMove
+            public void unmakeMove() {
+                historySize--;
+                int move = undoMoves[historySize];
+                int from = Move.from(move);
+                int to = Move.to(move);
+                int flags = Move.flags(move);
+                int state = undoState[historySize];
+
+                if (Move.isPromotion(move)) {
+                    recyclePiece(board[to >> 3][to & 7]);
+                    removePiece(to);
+                    putPiece(undoPromoted[historySize], to);
+                    undoPromoted[historySize] = null;
+                } else if (flags == Move.KING_CASTLE) {
+                    relocatePiece(to - 1, to + 1);
+                } else if (flags == Move.QUEEN_CASTLE) {
+                    relocatePiece(to + 1, to - 2);
+                }
+                Piece piece = board[to >> 3][to & 7];
+                relocatePiece(to, from);
+                Piece captured = undoCaptured[historySize];
+                if (captured != null) {
+                    int capturedSquare = flags == Move.EN_PASSANT ? to + (piece.getColor() == Color.WHITE ? 8 : -8) : to;
+                    putPiece(captured, capturedSquare);
+                    undoCaptured[historySize] = null;
+                }
+
+                castlingRights = state & 15;
+                enPassantSquare = ((state >>> 4) & 127) - 1;
+                sideToMove = ((state >>> 11) & 1) == 0 ? Color.WHITE : Color.BLACK; // Not the mover's: it may have moved out of turn
+                halfmoveClock = state >>> 12;
+                if (piece.getColor() == Color.BLACK) {
+                    fullmoveNumber--;
+                }
+                zobristKey = undoKeys[historySize]; // Restored rather than recomputed
+            }
+
+            private void growHistory() {
+                int size = undoMoves.length * 2;
+                undoMoves = Arrays.copyOf(undoMoves, size);
+                undoCaptured = Arrays.copyOf(undoCaptured, size);
+                undoPromoted = Arrays.copyOf(undoPromoted, size);
+                undoState = Arrays.copyOf(undoState, size);
+                undoKeys = Arrays.copyOf(undoKeys, size);
+            }
+
+            // Piece for a square, taken from the pool of pieces this board has let go of when possible
+            Piece obtainPiece(PieceType type, Color color, Position position) {
+                int index = color.ordinal() * 6 + type.ordinal();
+                if (spareCounts[index] == 0) {
+                    return Piece.create(type, color, position);
+                }
+                Piece piece = spareBoardPieces[index][--spareCounts[index]];
+                spareBoardPieces[index][spareCounts[index]] = null;
+                piece.setPosition(position);
+                return piece;
+            }
+
+            private void recyclePiece(Piece piece) {
+                int index = piece.colorIndex * 6 + piece.typeIndex;
+                if (spareCounts[index] < spareBoardPieces[index].length) {
+                    spareBoardPieces[index][spareCounts[index]++] = piece;
+                }
+            }
+
+            // Grid and bitboard updates shared by makeMove and unmakeMove
+            // Put the piece with code color * 6 + type on a square, or empty it with -1. A matching piece already
+            // there is kept, so loading similar positions one after another touches only the squares that differ.
+            void setSquare(int square, int code) {
+                Piece current = board[square >> 3][square & 7];
+                if (current != null) {
+                    if (current.colorIndex * 6 + current.typeIndex == code) {
+                        return;
+                    }
+                    removePiece(square);
+                    recyclePiece(current);
+                }
+                if (code >= 0) {
+                    Color color = code < 6 ? Color.WHITE : Color.BLACK;
+                    putPiece(obtainPiece(PIECE_TYPES[code % 6], color, Position.of(square)), square);
+                }
+            }
+
+            // Forget the moves made so far but keep the position
+            void clearHistory() {
+                Arrays.fill(undoCaptured, 0, historySize, null);
+                Arrays.fill(undoPromoted, 0, historySize, null);
+                historySize = 0;
+            }
+
+            private void putPiece(Piece piece, int square) {
+                board[square >> 3][square & 7] = piece;
+                piece.setPosition(Position.of(square));
+                toggleBit(piece.colorIndex, piece.typeIndex, square);
+            }
+
+            private void removePiece(int square) {
+                Piece piece = board[square >> 3][square & 7];
+                board[square >> 3][square & 7] = null;
+                toggleBit(piece.colorIndex, piece.typeIndex, square);
+            }
+
+            private void relocatePiece(int from, int to) {
+                Piece piece = board[from >> 3][from & 7];
+                board[from >> 3][from & 7] = null;
+                board[to >> 3][to & 7] = piece;
+                piece.setPosition(Position.of(to));
+                long fromTo = (1L << from) | (1L << to);
+                int color = piece.colorIndex;
+                pieceBitboards[color][piece.typeIndex] ^= fromTo;
+                colorOccupancy[color] ^= fromTo;
+                occupied ^= fromTo;
+                int type = piece.typeIndex;
+                long[] keys = Zobrist.PIECE_KEYS[color][type];
+                zobristKey ^= keys[from] ^ keys[to];
+                if (type == PieceType.PAWN.ordinal()) {
+                    pawnKey ^= keys[from] ^ keys[to];
+                } else if (type == PieceType.KING.ordinal()) {
+                    kingSquares[color] = to;
+                }
+                midgameScore += Evaluator.MIDGAME[color][type][to] - Evaluator.MIDGAME[color][type][from];
+                endgameScore += Evaluator.ENDGAME[color][type][to] - Evaluator.ENDGAME[color][type][from];
+            }
+
+            // True when no piece stands strictly between two squares on a shared rank, file or diagonal
+            public boolean isPathClear(Position from, Position to) {
+                long between = AttackTables.BETWEEN[from.square][to.square];
+                return (between & occupied) == 0;
+            }
+
+            // Flip the bit of a piece in its type, colour and occupancy masks
+            private void toggleBit(Piece piece, int row, int col) {
+                toggleBit(piece.colorIndex, piece.typeIndex, squareIndex(row, col));
+            }
+
+            private void toggleBit(int color, int type, int square) {
+                long bit = 1L << square;
+                int sign = (pieceBitboards[color][type] & bit) == 0 ? 1 : -1; // adding or removing
+                midgameScore += sign * Evaluator.MIDGAME[color][type][square];
+                endgameScore += sign * Evaluator.ENDGAME[color][type][square];
+                gamePhase += sign * Evaluator.PHASE_WEIGHTS[type];
+                if (type == PieceType.PAWN.ordinal()) {
+                    pawnKey ^= Zobrist.PIECE_KEYS[color][type][square];
+                } else if (type == PieceType.KING.ordinal()) {
+                    kingSquares[color] = sign > 0 ? square : -1;
+                }
+                pieceBitboards[color][type] ^= bit;
+                colorOccupancy[color] ^= bit;
+                occupied ^= bit;
+                zobristKey ^= Zobrist.PIECE_KEYS[color][type][square];
+            }
+
+            // Move a piece
+            public MoveStatus movePiece(Piece piece, Position newPosition) {
+                if (!MoveMetrics.enabled) {
+                    return tryMovePiece(piece, newPosition);
+                }
+                long start = System.nanoTime();
+                MoveStatus status = tryMovePiece(piece, newPosition);
+                MoveMetrics.METRICS.recordBoardMove(piece.typeIndex, System.nanoTime() - start);
+                return status;
+            }
+
+            private MoveStatus tryMovePiece(Piece piece, Position newPosition) {
+                if (piece.isValidMove(newPosition, this)) {
+                    Piece target = getPiece(newPosition);
+                    if (target == null || target.getColor() != piece.getColor()) {
+                        int from = piece.position.square;
+                        int to = newPosition.square;
+                        int flags = Move.QUIET;
+                        if (target != null) {
+                            flags = Move.CAPTURE;
+                        } else if (piece.getType() == PieceType.PAWN && Math.abs(to - from) == 16) {
+                            flags = Move.DOUBLE_PAWN_PUSH;
+                        }
+                        makeMove(Move.encode(from, to, flags)); // Goes on the undo stack like any other move
+                        return MoveStatus.SUCCESS;
+                    }
+                }
+                return MoveStatus.ILLEGAL_MOVE;
+            }
+
+            public MoveStatus movePiece(Piece piece, int square) {
+                return movePiece(piece, Position.of(square));
+            }
+
+            // Draw the current state of the board
+            public void drawBoard() {
+                StringBuilder text = new StringBuilder(200);
+                appendBoard(text);
+                System.out.print(text); // One write instead of one per square
+            }
+
+            // Append the board as text, rank 8 first, to a caller-owned builder
+            public void appendBoard(StringBuilder text) {
+                text.append("  a b c d e f g h\n");
+                for (int row = 0; row < 8; row++) {
+                    text.append((char) ('8' - row)).append(' ');
+                    for (int col = 0; col < 8; col++) {
+                        text.append(board[row][col] == null ? '.' : board[row][col].getSymbol()).append(' ');
+                    }
+                    text.append((char) ('8' - row)).append('\n');
+                }
+                text.append("  a b c d e f g h\n");
+            }
+        }
+
+        // Moves packed into an int: bits 0-5 from square, 6-11 to square, 12-15 flags.
+        // Squares use the Board bit index (row * 8 + col).
+        static final class Move {
+            static final int QUIET = 0;
+            static final int DOUBLE_PAWN_PUSH = 1;
+            static final int KING_CASTLE = 2;
+            static final int QUEEN_CASTLE = 3;
+            static final int CAPTURE = 4;
+            static final int EN_PASSANT = 5;
+            static final int PROMOTION = 8; // + 0..3 for knight, bishop, rook, queen
+            static final int PROMOTION_CAPTURE = 12; // + 0..3 for knight, bishop, rook, queen
+
+            private Move() {}
+
+            static int encode(int from, int to, int flags) {
+                return from | (to << 6) | (flags << 12);
+            }
+
+            static int from(int move) {
+                return move & 63;
+            }
+
+            static int to(int move) {
+                return (move >>> 6) & 63;
+            }
+
+            static int flags(int move) {
+                return (move >>> 12) & 15;
+            }
+
+            static boolean isCapture(int move) {
+                return (flags(move) & CAPTURE) != 0;
+            }
+
+            static boolean isPromotion(int move) {
+                return (flags(move) & PROMOTION) != 0;
+            }
+
+            // PieceType ordinal of the promotion piece
+            static int promotionType(int move) {
+                return PieceType.KNIGHT.ordinal() + (flags(move) & 3);
+            }
+
+            // Long algebraic notation, e.g. "e2e4" or "e7e8q"
+            static String toString(int move) {
+                StringBuilder sb = new StringBuilder(5);
+                appendSquare(sb, from(move));
+                appendSquare(sb, to(move));
+                if (isPromotion(move)) {
+                    sb.append("nbrq".charAt(flags(move) & 3));
+                }
+                return sb.toString();
+            }
+
+            static void appendSquare(StringBuilder sb, int square) {
+                sb.append((char) ('a' + square % 8)).append((char) ('8' - square / 8));
+            }
+        }
+
+        // FEN import and export. The parser reads straight from a CharSequence (or a ByteBuffer through
+        // a reusable view) into the board: no split, no substrings and, thanks to the board's piece pool,
+        // no new Piece objects once a board has been loaded before.
+        static final class Fen {
+            static final String START_POSITION = "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1";
+            private static final String PIECE_LETTERS = "pnbrqk"; // indexed by PieceType
+
+            private Fen() {}
+
+            public static void load(Board board, CharSequence fen) {
+                load(board, fen, 0, fen.length());
+            }
+
+            // Replace the board's position with the FEN between start and end; the undo history is cleared
+            public static void load(Board board, CharSequence fen, int start, int end) {
+                board.clear();
+                int i = start;
+                int row = 0;
+                int col = 0;
+                for (; i < end && fen.charAt(i) != ' '; i++) {
+                    char c = fen.charAt(i);
+                    if (c == '/') {
+                        row++;
+                        col = 0;
+                    } else if (c >= '1' && c <= '8') {
+                        col += c - '0';
+                    } else {
+                        int type = PIECE_LETTERS.indexOf(Character.toLowerCase(c));
+                        if (type < 0 || row > 7 || col > 7) {
+                            throw invalid(fen, start, end);
+                        }
+                        Color color = Character.isUpperCase(c) ? Color.WHITE : Color.BLACK;
+                        Position position = Position.of(row, col);
+                        board.placePiece(board.obtainPiece(Board.PIECE_TYPES[type], color, position), position);
+                        col++;
+                    }
+                }
+                if (row != 7 || i + 1 >= end) {
+                    throw invalid(fen, start, end);
+                }
+
+                char side = fen.charAt(++i);
+                if (side != 'w' && side != 'b') {
+                    throw invalid(fen, start, end);
+                }
+                board.setSideToMove(side == 'w' ? Color.WHITE : Color.BLACK);
+                i += 2;
+
+                int rights = 0;
+                for (; i < end && fen.charAt(i) != ' '; i++) {
+                    switch (fen.charAt(i)) {
+                        case 'K': rights |= Board.WHITE_KINGSIDE; break;
+                        case 'Q': rights |= Board.WHITE_QUEENSIDE; break;
+                        case 'k': rights |= Board.BLACK_KINGSIDE; break;
+                        case 'q': rights |= Board.BLACK_QUEENSIDE; break;
+                        case '-': break;
+                        default: throw invalid(fen, start, end);
+                    }
+                }
+                board.setCastlingRights(rights);
+                i++;
+
+                int enPassant = -1;
+                if (i < end && fen.charAt(i) != '-') {
+                    if (i + 1 >= end) {
+                        throw invalid(fen, start, end);
+                    }
+                    int epCol = fen.charAt(i) - 'a';
+                    int epRow = '8' - fen.charAt(i + 1);
+                    if (epCol < 0 || epCol > 7 || epRow < 0 || epRow > 7) {
+                        throw invalid(fen, start, end);
+                    }
+                    enPassant = Board.squareIndex(epRow, epCol);
+                    i++;
+                }
+                board.setEnPassantSquare(enPassant);
+                i += 2;
+
+                // Move counters are optional in EPD-style lines
+                int halfmove = 0;
+                for (; i < end && fen.charAt(i) != ' '; i++) {
+                    halfmove = halfmove * 10 + digit(fen, i, start, end);
+                }
+                int fullmove = 0;
+                for (i++; i < end && fen.charAt(i) != ' '; i++) {
+                    fullmove = fullmove * 10 + digit(fen, i, start, end);
+                }
+                board.setHalfmoveClock(halfmove);
+                board.setFullmoveNumber(Math.max(1, fullmove));
+            }
+
+            public static String toFen(Board board) {
+                StringBuilder sb = new StringBuilder(90);
+                write(board, sb);
+                return sb.toString();
+            }
+
+            // Append the board's FEN to a caller-owned builder
+            public static void write(Board board, StringBuilder sb) {
+                for (int row = 0; row < 8; row++) {
+                    int empty = 0;
+                    for (int col = 0; col < 8; col++) {
+                        Piece piece = board.getPiece(Board.squareIndex(row, col));
+                        if (piece == null) {
+                            empty++;
+                            continue;
+                        }
+                        if (empty > 0) {
+                            sb.append((char) ('0' + empty));
+                            empty = 0;
+                        }
+                        sb.append(piece.getSymbol());
+                    }
+                    if (empty > 0) {
+                        sb.append((char) ('0' + empty));
+                    }
+                    if (row < 7) {
+                        sb.append('/');
+                    }
+                }
+                sb.append(board.getSideToMove() == Color.WHITE ? " w " : " b ");
+                int rights = board.getCastlingRights();
+                if (rights == 0) {
+                    sb.append('-');
+                }
+                if ((rights & Board.WHITE_KINGSIDE) != 0) sb.append('K');
+                if ((rights & Board.WHITE_QUEENSIDE) != 0) sb.append('Q');
+                if ((rights & Board.BLACK_KINGSIDE) != 0) sb.append('k');
+                if ((rights & Board.BLACK_QUEENSIDE) != 0) sb.append('q');
+                sb.append(' ');
+                if (board.getEnPassantSquare() < 0) {
+                    sb.append('-');
+                } else {
+                    Move.appendSquare(sb, board.getEnPassantSquare());
+                }
+                sb.append(' ').append(board.getHalfmoveClock()).append(' ').append(board.getFullmoveNumber());
+            }
+
+            // Load every line of a FEN file into `board` in turn and hand it to `action`.
+            // The file is memory-mapped in windows, so its size is not limited by the heap.
+            // Returns the number of positions read; empty lines are skipped.
+            public static long forEachPosition(Path file, Board board, Consumer<Board> action) throws IOException {
+                final long window = 64L << 20;
+                ByteBufferSequence line = new ByteBufferSequence();
+                long count = 0;
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    long size = channel.size();
+                    long offset = 0;
+                    while (offset < size) {
+                        long length = Math.min(window, size - offset);
+                        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+                        boolean last = offset + length == size;
+                        int lineStart = 0;
+                        for (int i = 0; i < length; i++) {
+                            if (buffer.get(i) == '\n') {
+                                count += loadLine(board, action, line, buffer, lineStart, i);
+                                lineStart = i + 1;
+                            }
+                        }
+                        if (last) {
+                            count += loadLine(board, action, line, buffer, lineStart, (int) length);
+                            break;
+                        }
+                        if (lineStart == 0) {
+                            throw new IOException("Line longer than " + window + " bytes at offset " + offset);
+                        }
+                        offset += lineStart; // Next window starts at the first incomplete line
+                    }
+                }
+                return count;
+            }
+
+            private static int loadLine(Board board, Consumer<Board> action, ByteBufferSequence line, ByteBuffer buffer, int start, int end) {
+                if (end > start && buffer.get(end - 1) == '\r') {
+                    end--;
+                }
+                if (end <= start) {
+                    return 0;
+                }
+                line.wrap(buffer, start, end);
+                load(board, line);
+                action.accept(board);
+                return 1;
+            }
+
+            private static int digit(CharSequence fen, int i, int start, int end) {
+                char c = fen.charAt(i);
+                if (c < '0' || c > '9') {
+                    throw invalid(fen, start, end);
+                }
+                return c - '0';
+            }
+
+            private static IllegalArgumentException invalid(CharSequence fen, int start, int end) {
+                return new IllegalArgumentException("Invalid FEN: " + fen.subSequence(start, end));
+            }
+        }
+
+        // Read-only CharSequence view of ASCII bytes in a ByteBuffer, re-pointed for every line
+        static final class ByteBufferSequence implements CharSequence {
+            private ByteBuffer buffer;
+            private int start;
+            private int length;
+
+            void wrap(ByteBuffer buffer, int start, int end) {
+                this.buffer = buffer;
+                this.start = start;
+                this.length = end - start;
+            }
+
+            @Override
+            public int length() {
+                return length;
+            }
+
+            @Override
+            public char charAt(int index) {
+                return (char) (buffer.get(start + index) & 0xFF);
+            }
+
+            @Override
+            public CharSequence subSequence(int from, int to) {
+                StringBuilder sb = new StringBuilder(to - from);
+                for (int i = from; i < to; i++) {
+                    sb.append(charAt(i));
+                }
+                return sb;
+            }
+
+            @Override
+            public String toString() {
+                return subSequence(0, length).toString();
+            }
+        }
+
+        // PGN replay and validation. A SAN move is decoded by matching it against the legal moves of the
+        // position, so a game is valid exactly when every one of its moves decodes to a legal move.
+        static final class Pgn {
+            private static final String SAN_PIECES = "PNBRQK"; // indexed by PieceType
+            private static final int GAMES_PER_WORKER = 64; // games read ahead for each worker
+            private static final long WINDOW_SIZE = 64L << 20;
+            private static final GameText END_OF_INPUT = new GameText(0, null);
+
+            private Pgn() {}
+
+            // Legal move written in SAN between start and end, or 0 if no legal move, or more than one, matches.
+            // Check and annotation suffixes are ignored and "0-0" is accepted for "O-O".
+            static int decodeSan(Board board, CharSequence san, int start, int end, int[] moves) {
+                while (end > start && "+#!?".indexOf(san.charAt(end - 1)) >= 0) {
+                    end--;
+                }
+                if (end - start < 2) {
+                    return 0;
+                }
+                // Only the few moves that match the text are checked for legality
+                int count = MoveGenerator.generatePseudoLegalMoves(board, moves);
+                char first = san.charAt(start);
+                if (first == 'O' || first == '0') {
+                    int flags = end - start == 3 ? Move.KING_CASTLE : end - start == 5 ? Move.QUEEN_CASTLE : -1;
+                    for (int i = 0; i < count; i++) {
+                        if (Move.flags(moves[i]) == flags && MoveGenerator.isLegal(board, moves[i])) {
+                            return moves[i];
+                        }
+                    }
+                    return 0;
+                }
+
+                int type = PieceType.PAWN.ordinal();
+                int i = start;
+                if (first >= 'A' && first <= 'Z') {
+                    type = SAN_PIECES.indexOf(first);
+                    if (type <= 0) {
+                        return 0;
+                    }
+                    i++;
+                }
+                int promotion = -1;
+                char last = san.charAt(end - 1);
+                if (last >= 'A' && last <= 'Z') {
+                    promotion = SAN_PIECES.indexOf(last);
+                    if (promotion < PieceType.KNIGHT.ordinal() || promotion > PieceType.QUEEN.ordinal()) {
+                        return 0;
+                    }
+                    end--;
+                    if (san.charAt(end - 1) == '=') {
+                        end--;
+                    }
+                }
+                // The destination is last; anything between it and the piece letter is a capture sign or disambiguation
+                if (end - i < 2) {
+                    return 0;
+                }
+                int toCol = san.charAt(end - 2) - 'a';
+                int toRow = '8' - san.charAt(end - 1);
+                if (toCol < 0 || toCol > 7 || toRow < 0 || toRow > 7) {
+                    return 0;
+                }
+                int to = Board.squareIndex(toRow, toCol);
+                int fromCol = -1;
+                int fromRow = -1;
+                for (int j = i; j < end - 2; j++) {
+                    char c = san.charAt(j);
+                    if (c >= 'a' && c <= 'h') {
+                        fromCol = c - 'a';
+                    } else if (c >= '1' && c <= '8') {
+                        fromRow = '8' - c;
+                    } else if (c != 'x' && c != ':' && c != '-') {
+                        return 0;
+                    }
+                }
+
+                long ownType = board.pieceBitboards[board.getSideToMove().ordinal()][type];
+                int match = 0;
+                for (int m = 0; m < count; m++) {
+                    int move = moves[m];
+                    int from = Move.from(move);
+                    if (Move.to(move) != to || (ownType & (1L << from)) == 0
+                            || (fromCol >= 0 && from % 8 != fromCol) || (fromRow >= 0 && from / 8 != fromRow)
+                            || (Move.isPromotion(move) ? Move.promotionType(move) != promotion : promotion >= 0)
+                            || !MoveGenerator.isLegal(board, move)) {
+                        continue;
+                    }
+                    if (match != 0) {
+                        return 0; // Ambiguous
+                    }
+                    match = move;
+                }
+                return match;
+            }
+
+            // Append the SAN of a legal move, including the check or mate sign; `moves` is scratch space
+            static void appendSan(Board board, int move, int[] moves, StringBuilder sb) {
+                int from = Move.from(move);
+                int to = Move.to(move);
+                int flags = Move.flags(move);
+                if (flags == Move.KING_CASTLE || flags == Move.QUEEN_CASTLE) {
+                    sb.append(flags == Move.KING_CASTLE ? "O-O" : "O-O-O");
+                } else {
+                    PieceType type = board.getPiece(from).getType();
+                    if (type == PieceType.PAWN) {
+                        if (Move.isCapture(move)) {
+                            sb.append((char) ('a' + from % 8));
+                        }
+                    } else {
+                        sb.append(SAN_PIECES.charAt(type.ordinal()));
+                        // Disambiguate by file, then by rank, then by both
+                        boolean sameFile = false;
+                        boolean sameRank = false;
+                        boolean ambiguous = false;
+                        long ownType = board.pieceBitboards[board.getSideToMove().ordinal()][type.ordinal()];
+                        int count = MoveGenerator.generatePseudoLegalMoves(board, moves);
+                        for (int i = 0; i < count; i++) {
+                            int other = Move.from(moves[i]);
+                            if (other != from && Move.to(moves[i]) == to && (ownType & (1L << other)) != 0
+                                    && MoveGenerator.isLegal(board, moves[i])) {
+                                ambiguous = true;
+                                sameFile |= other % 8 == from % 8;
+                                sameRank |= other / 8 == from / 8;
+                            }
+                        }
+                        if (ambiguous && (!sameFile || sameRank)) {
+                            sb.append((char) ('a' + from % 8));
+                        }
+                        if (sameFile) {
+                            sb.append((char) ('8' - from / 8));
+                        }
+                    }
+                    if (Move.isCapture(move)) {
+                        sb.append('x');
+                    }
+                    Move.appendSquare(sb, to);
+                    if (Move.isPromotion(move)) {
+                        sb.append('=').append(SAN_PIECES.charAt(Move.promotionType(move)));
+                    }
+                }
+                board.makeMove(move);
+                if (board.isInCheck(board.getSideToMove())) {
+                    sb.append(board.hasLegalMove() ? '+' : '#');
+                }
+                board.unmakeMove();
+            }
+
+            // Replay every game of a PGN file on `threads` worker threads and pass each illegal move to `errors`,
+            // which may be called from several workers at once. The file is memory-mapped in windows and only a
+            // bounded number of games wait for a worker, so memory use does not depend on the file size.
+            static PgnSummary validate(Path file, int threads, Consumer<PgnError> errors) throws IOException, InterruptedException {
+                return validate(file, threads, errors, board -> {});
+            }
+
+            // As above, also passing the board of every valid game, after its last move, to `games` on the worker thread
+            static PgnSummary validate(Path file, int threads, Consumer<PgnError> errors, Consumer<Board> games)
+                    throws IOException, InterruptedException {
+                PgnSummary summary = new PgnSummary();
+                BlockingQueue<GameText> queue = new ArrayBlockingQueue<>(threads * GAMES_PER_WORKER);
+                ExecutorService workers = Executors.newFixedThreadPool(threads);
+                List<Future<?>> results = new ArrayList<>(threads);
+                // First failure of a consumer; workers still drain the queue afterwards, so the reader never blocks
+                AtomicReference<RuntimeException> failure = new AtomicReference<>();
+                for (int i = 0; i < threads; i++) {
+                    results.add(workers.submit(() -> {
+                        Board board = new Board();
+                        int[] moves = new int[MoveGenerator.MAX_MOVES];
+                        ByteBufferSequence text = new ByteBufferSequence();
+                        for (GameText game = queue.take(); game != END_OF_INPUT; game = queue.take()) {
+                            if (failure.get() != null) {
+                                continue;
+                            }
+                            text.wrap(game.text, 0, game.text.limit());
+                            try {
+                                replay(game.number, text, board, moves, summary, errors, games);
+                            } catch (RuntimeException e) {
+                                failure.compareAndSet(null, e);
+                            }
+                        }
+                        return null;
+                    }));
+                }
+                try {
+                    splitGames(file, queue, failure);
+                } finally {
+                    for (int i = 0; i < threads; i++) {
+                        queue.put(END_OF_INPUT);
+                    }
+                    workers.shutdown();
+                }
+                try {
+                    for (Future<?> result : results) {
+                        result.get();
+                    }
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("PGN worker failed", e.getCause());
+                }
+                if (failure.get() != null) {
+                    throw new IllegalStateException("PGN worker failed", failure.get());
+                }
+                return summary;
+            }
+
+            // Queue every game of the file as a slice of the mapping. A game starts at a tag line that follows
+            // movetext; a window ends before its last, possibly incomplete, game, which the next window starts with.
+            // Stops early once a worker has failed.
+            private static void splitGames(Path file, BlockingQueue<GameText> queue, AtomicReference<RuntimeException> failure)
+                    throws IOException, InterruptedException {
+                long number = 0;
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    long size = channel.size();
+                    long offset = 0;
+                    while (offset < size) {
+                        int length = (int) Math.min(WINDOW_SIZE, size - offset);
+                        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+                        int gameStart = 0;
+                        boolean inMovetext = false;
+                        for (int lineStart = 0; lineStart < length; ) {
+                            byte first = buffer.get(lineStart);
+                            if (first == '[') {
+                                if (inMovetext) {
+                                    if (failure.get() != null) {
+                                        return;
+                                    }
+                                    queue.put(new GameText(++number, buffer.slice(gameStart, lineStart - gameStart)));
+                                    gameStart = lineStart;
+                                    inMovetext = false;
+                                }
+                            } else if (first != '\n' && first != '\r' && first != ' ' && first != '\t') {
+                                inMovetext = true;
+                            }
+                            int next = lineStart;
+                            while (next < length && buffer.get(next) != '\n') {
+                                next++;
+                            }
+                            lineStart = next + 1;
+                        }
+                        if (offset + length == size) {
+                            if (inMovetext) {
+                                queue.put(new GameText(++number, buffer.slice(gameStart, length - gameStart)));
+                            }
+                            break;
+                        }
+                        if (gameStart == 0) {
+                            throw new IOException("Game longer than " + WINDOW_SIZE + " bytes at offset " + offset);
+                        }
+                        offset += gameStart;
+                    }
+                }
+            }
+
+            // Play one game from its tags and movetext, stopping at the first move that does not decode
+            private static void replay(long number, CharSequence text, Board board, int[] moves,
+                                       PgnSummary summary, Consumer<PgnError> errors, Consumer<Board> games) {
+                Fen.load(board, Fen.START_POSITION);
+                int ply = 0;
+                int length = text.length();
+                int i = 0;
+                try {
+                    while (i < length) {
+                        char c = text.charAt(i);
+                        if (c <= ' ' || c == ')') {
+                            i++;
+                        } else if (c == '[') {
+                            i = readTag(text, i, board, ply);
+                        } else if (c == '{') {
+                            i = skipPast(text, i, '}');
+                        } else if (c == ';' || c == '%') {
+                            i = skipPast(text, i, '\n');
+                        } else if (c == '(') {
+                            i = skipVariation(text, i);
+                        } else {
+                            int end = i;
+                            while (end < length && text.charAt(end) > ' ' && "{;()".indexOf(text.charAt(end)) < 0) {
+                                end++;
+                            }
+                            if (isResult(text, i, end)) {
+                                break;
+                            }
+                            // Move numbers ("12." or "12...") may be written apart from or attached to the move
+                            int san = i;
+                            while (san < end && Character.isDigit(text.charAt(san))) {
+                                san++;
+                            }
+                            if (san < end && text.charAt(san) == '.') {
+                                while (san < end && text.charAt(san) == '.') {
+                                    san++;
+                                }
+                            } else {
+                                san = i;
+                            }
+                            if (san < end && c != '$') {
+                                int move = decodeSan(board, text, san, end, moves);
+                                if (move == 0) {
+                                    summary.invalidGames.increment();
+                                    errors.accept(new PgnError(number, ply + 1, text.subSequence(san, end).toString(),
+                                            "illegal or ambiguous move"));
+                                    return;
+                                }
+                                board.makeMove(move);
+                                ply++;
+                            }
+                            i = end;
+                        }
+                    }
+                    games.accept(board);
+                } catch (IllegalArgumentException e) {
+                    summary.invalidGames.increment();
+                    errors.accept(new PgnError(number, ply + 1, "", e.getMessage()));
+                    return;
+                } finally {
+                    summary.games.increment();
+                    summary.moves.add(ply);
+                }
+            }
+
+            // Read a tag pair at `i`; a FEN tag before the first move sets the starting position
+            private static int readTag(CharSequence text, int i, Board board, int ply) {
+                int end = skipPast(text, i, ']');
+                int valueStart = i;
+                while (valueStart < end && text.charAt(valueStart) != '"') {
+                    valueStart++;
+                }
+                int valueEnd = valueStart + 1;
+                while (valueEnd < end && text.charAt(valueEnd) != '"') {
+                    valueEnd++;
+                }
+                if (ply == 0 && valueEnd < end && valueStart - i >= 4 && text.charAt(i + 1) == 'F'
+                        && text.charAt(i + 2) == 'E' && text.charAt(i + 3) == 'N' && text.charAt(i + 4) <= ' ') {
+                    Fen.load(board, text, valueStart + 1, valueEnd);
+                }
+                return end;
+            }
+
+            // Skip a variation, which may contain nested variations and comments
+            private static int skipVariation(CharSequence text, int i) {
+                int depth = 0;
+                for (int length = text.length(); i < length; i++) {
+                    char c = text.charAt(i);
+                    if (c == '{') {
+                        i = skipPast(text, i, '}') - 1;
+                    } else if (c == '(') {
+                        depth++;
+                    } else if (c == ')' && --depth == 0) {
+                        return i + 1;
+                    }
+                }
+                return i;
+            }
+
+            private static int skipPast(CharSequence text, int i, char terminator) {
+                int length = text.length();
+                while (i < length && text.charAt(i) != terminator) {
+                    i++;
+                }
+                return Math.min(i + 1, length);
+            }
+
+            // "1-0", "0-1", "1/2-1/2" or "*"
+            private static boolean isResult(CharSequence text, int start, int end) {
+                int length = end - start;
+                if (length == 1) {
+                    return text.charAt(start) == '*';
+                }
+                return (length == 3 && text.charAt(start + 1) == '-' && text.charAt(start) != text.charAt(start + 2)
+                        && (text.charAt(start) == '0' || text.charAt(start) == '1'))
+                        || (length == 7 && text.charAt(start + 1) == '/');
+            }
+        }
+
+        // One game of a PGN file: its number in the file and its bytes
+        static final class GameText {
+            final long number;
+            final ByteBuffer text;
+
+            GameText(long number, ByteBuffer text) {
+                this.number = number;
+                this.text = text;
+            }
+        }
+
+        // Move of a PGN game that could not be replayed
+        static final class PgnError {
+            final long game;
+            final int ply;
+            final String san;
+            final String reason;
+
+            PgnError(long game, int ply, String san, String reason) {
+                this.game = game;
+                this.ply = ply;
+                this.san = san;
+                this.reason = reason;
+            }
+
+            @Override
+            public String toString() {
+                return "game " + game + ", ply " + ply + (san.isEmpty() ? "" : " (" + san + ")") + ": " + reason;
+            }
+        }
+
+        // Counts of a PGN validation run, updated by all workers
+        static final class PgnSummary {
+            final LongAdder games = new LongAdder();
+            final LongAdder invalidGames = new LongAdder();
+            final LongAdder moves = new LongAdder();
+
+            @Override
+            public String toString() {
+                return games.sum() + " games, " + invalidGames.sum() + " invalid, " + moves.sum() + " moves replayed";
+            }
+        }
+
+        // Fixed 32-byte record of a position: the occupancy bitboard, one nibble per occupied square in square
+        // order (color * 6 + piece type), side to move with castling rights, en passant file, halfmove clock and
+        // fullmove number. A legal position has at most 32 pieces, so the nibbles always fit in 16 bytes.
+        static final class PackedPosition {
+            static final int SIZE = 32;
+
+            private PackedPosition() {}
+
+            // Write the record at the buffer's position and advance it by SIZE
+            static void write(Board board, ByteBuffer out) {
+                long occupied = board.getOccupied();
+                if (Long.bitCount(occupied) > 32) {
+                    throw new IllegalArgumentException("More than 32 pieces cannot be packed");
+                }
+                long low = 0;
+                long high = 0;
+                int nibble = 0;
+                for (long bits = occupied; bits != 0; bits &= bits - 1, nibble++) {
+                    Piece piece = board.getPiece(Long.numberOfTrailingZeros(bits));
+                    long code = piece.colorIndex * 6L + piece.typeIndex;
+                    if (nibble < 16) {
+                        low |= code << (4 * nibble);
+                    } else {
+                        high |= code << (4 * (nibble - 16));
+                    }
+                }
+                int enPassant = board.getEnPassantSquare();
+                out.putLong(occupied).putLong(low).putLong(high);
+                out.put((byte) (board.getSideToMove().ordinal() | (board.getCastlingRights() << 1)));
+                out.put((byte) (enPassant < 0 ? 0 : enPassant % 8 + 1));
+                out.put((byte) Math.min(board.getHalfmoveClock(), 255));
+                out.putShort((short) board.getFullmoveNumber());
+                out.put((byte) 0).putShort((short) 0); // Padding to SIZE
+            }
+
+            // Replace the board's position with the record at `offset`; the undo history is cleared.
+            // Only squares whose piece differs are updated, which keeps batch loading cheap.
+            static void read(ByteBuffer in, int offset, Board board) {
+                board.clearHistory();
+                long occupied = in.getLong(offset);
+                long low = in.getLong(offset + 8);
+                long high = in.getLong(offset + 16);
+                for (long bits = board.getOccupied() & ~occupied; bits != 0; bits &= bits - 1) {
+                    board.setSquare(Long.numberOfTrailingZeros(bits), -1);
+                }
+                int nibble = 0;
+                for (long bits = occupied; bits != 0; bits &= bits - 1, nibble++) {
+                    int code = (int) ((nibble < 16 ? low >>> (4 * nibble) : high >>> (4 * (nibble - 16))) & 15);
+                    if (code >= 12) {
+                        throw new IllegalArgumentException("Invalid piece code " + code);
+                    }
+                    board.setSquare(Long.numberOfTrailingZeros(bits), code);
+                }
+                int flags = in.get(offset + 24);
+                Color sideToMove = (flags & 1) == 0 ? Color.WHITE : Color.BLACK;
+                int enPassantFile = in.get(offset + 25);
+                board.setSideToMove(sideToMove);
+                board.setCastlingRights((flags >> 1) & Board.ALL_CASTLING);
+                // The en passant square is behind the pawn that just moved two squares
+                board.setEnPassantSquare(enPassantFile == 0 ? -1
+                        : Board.squareIndex(sideToMove == Color.WHITE ? 2 : 5, enPassantFile - 1));
+                board.setHalfmoveClock(in.get(offset + 26) & 0xFF);
+                board.setFullmoveNumber(in.getShort(offset + 27) & 0xFFFF);
+            }
+        }
+
+        // Binary game archive. A game is its packed start position, a 16-bit move count and the 16-bit Move code
+        // of every move. The moves were legal when written, so they are replayed without generating move lists.
+        // A separate index file holds the data offset of every game, so game N is found with one lookup.
+        static final class GameStore {
+            private static final int SEGMENT_BITS = 30; // files are mapped in 1GB segments
+            private static final int BUFFER_SIZE = 1 << 16;
+
+            private GameStore() {}
+
+            static final class Writer implements AutoCloseable {
+                private final FileChannel data;
+                private final FileChannel index;
+                private final ByteBuffer dataBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                private final ByteBuffer indexBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                private int[] played = new int[256];
+                private long offset;
+                private long games;
+
+                Writer(Path dataFile, Path indexFile) throws IOException {
+                    data = FileChannel.open(dataFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                            StandardOpenOption.TRUNCATE_EXISTING);
+                    index = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                            StandardOpenOption.TRUNCATE_EXISTING);
+                }
+
+                // Append the game played on `board`: the position before the first move on its undo stack and
+                // every move made since. The board is left as it was.
+                public void append(Board board) throws IOException {
+                    int plies = board.getHistorySize();
+                    if (plies > 0xFFFF) {
+                        throw new IllegalArgumentException("Game too long to store: " + plies + " plies");
+                    }
+                    if (played.length < plies) {
+                        played = new int[Math.max(plies, played.length * 2)];
+                    }
+                    for (int i = plies - 1; i >= 0; i--) {
+                        played[i] = board.getHistoryMove(i);
+                        board.unmakeMove();
+                    }
+
+                    if (indexBuffer.remaining() < Long.BYTES) {
+                        flush(indexBuffer, index);
+                    }
+                    indexBuffer.putLong(offset);
+                    if (dataBuffer.remaining() < PackedPosition.SIZE + 2) {
+                        flush(dataBuffer, data);
+                    }
+                    PackedPosition.write(board, dataBuffer);
+                    dataBuffer.putShort((short) plies);
+                    for (int i = 0; i < plies; i++) {
+                        if (dataBuffer.remaining() < 2) {
+                            flush(dataBuffer, data);
+                        }
+                        dataBuffer.putShort((short) played[i]);
+                        board.makeMove(played[i]);
+                    }
+                    offset += PackedPosition.SIZE + 2 + 2L * plies;
+                    games++;
+                }
+
+                public long getGameCount() {
+                    return games;
+                }
+
+                private static void flush(ByteBuffer buffer, FileChannel channel) throws IOException {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    buffer.clear();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try (FileChannel d = data; FileChannel i = index) {
+                        flush(dataBuffer, d);
+                        flush(indexBuffer, i);
+                    }
+                }
+            }
+
+            // Random access to a store through memory mappings. Not thread-safe: use one Reader per thread.
+            static final class Reader {
+                private final MappedByteBuffer[] data;
+                private final MappedByteBuffer[] index;
+                private final long gameCount;
+                private final ByteBuffer record = ByteBuffer.allocate(PackedPosition.SIZE);
+
+                Reader(Path dataFile, Path indexFile) throws IOException {
+                    data = map(dataFile);
+                    index = map(indexFile);
+                    gameCount = Files.size(indexFile) / Long.BYTES;
+                }
+
+                public long getGameCount() {
+                    return gameCount;
+                }
+
+                // Set the board to the start of game `n` and play all of its moves, which stay on the undo
+                // stack. Returns the number of moves.
+                public int readGame(long n, Board board) {
+                    return readGame(n, Integer.MAX_VALUE, board);
+                }
+
+                // Set the board to the position after the first `ply` moves of game `n`
+                public void readPosition(long n, int ply, Board board) {
+                    if (readGame(n, ply, board) < ply) {
+                        throw new IllegalArgumentException("Game " + n + " has fewer than " + ply + " moves");
+                    }
+                }
+
+                private int readGame(long n, int maxPlies, Board board) {
+                    if (n < 0 || n >= gameCount) {
+                        throw new IndexOutOfBoundsException("Game " + n + " of " + gameCount);
+                    }
+                    long indexOffset = n * Long.BYTES; // never straddles a segment
+                    long offset = index[(int) (indexOffset >>> SEGMENT_BITS)].getLong((int) (indexOffset & segmentMask()));
+                    for (int i = 0; i < PackedPosition.SIZE; i++) {
+                        record.put(i, get(offset + i));
+                    }
+                    PackedPosition.read(record, 0, board);
+                    offset += PackedPosition.SIZE;
+                    int plies = Math.min(getShort(offset), maxPlies);
+                    offset += 2;
+                    for (int i = 0; i < plies; i++, offset += 2) {
+                        int move = getShort(offset);
+                        if (board.getPiece(Move.from(move)) == null) {
+                            throw new IllegalStateException("Corrupt move " + i + " in game " + n);
+                        }
+                        board.makeMove(move);
+                    }
+                    return plies;
+                }
+
+                private byte get(long offset) {
+                    return data[(int) (offset >>> SEGMENT_BITS)].get((int) (offset & segmentMask()));
+                }
+
+                // Big-endian unsigned 16-bit value, which may straddle two segments
+                private int getShort(long offset) {
+                    return ((get(offset) & 0xFF) << 8) | (get(offset + 1) & 0xFF);
+                }
+            }
+
+            private static long segmentMask() {
+                return (1L << SEGMENT_BITS) - 1;
+            }
+
+            // Map a whole file read-only; the mappings stay valid after the channel is closed
+            private static MappedByteBuffer[] map(Path file) throws IOException {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    long size = channel.size();
+                    MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((size + segmentMask()) >>> SEGMENT_BITS)];
+                    for (int i = 0; i < segments.length; i++) {
+                        long start = (long) i << SEGMENT_BITS;
+                        segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size - start, 1L << SEGMENT_BITS));
+                    }
+                    return segments;
+                }
+            }
+        }
+
+        // Side-effect-free legality checks for many (position, move) pairs at once. Pair i is the PackedPosition
+        // record at i * PackedPosition.SIZE of `positions` and the Move code moves[i]; statuses[i] receives the
+        // MoveStatus ordinal. The batch is split over a fork-join pool and every worker thread keeps one scratch
+        // Board, so nothing is allocated per pair and the inputs are only read.
+        static final class BatchValidator {
+            private static final int CHUNK = 512; // pairs per fork-join task
+            private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+            private BatchValidator() {}
+
+            // Board and move buffer reused by one thread for every pair it checks
+            private static final class Scratch {
+                final Board board = new Board();
+                final int[] moves = new int[MoveGenerator.MAX_MOVES];
+            }
+
+            public static void validate(ByteBuffer positions, int[] moves, byte[] statuses) {
+                validate(ForkJoinPool.commonPool(), positions, moves, statuses);
+            }
+
+            public static void validate(ForkJoinPool pool, ByteBuffer positions, int[] moves, byte[] statuses) {
+                if (statuses.length < moves.length || positions.limit() < (long) moves.length * PackedPosition.SIZE) {
+                    throw new IllegalArgumentException("Batch of " + moves.length + " moves needs as many positions and statuses");
+                }
+                pool.invoke(new Chunk(positions, moves, statuses, 0, moves.length));
+            }
+
+            // Check pairs from..to-1 on the calling thread
+            public static void validateRange(ByteBuffer positions, int[] moves, byte[] statuses, int from, int to) {
+                Scratch scratch = SCRATCH.get();
+                for (int i = from; i < to; i++) {
+                    PackedPosition.read(positions, i * PackedPosition.SIZE, scratch.board);
+                    statuses[i] = (byte) check(scratch.board, moves[i], scratch.moves).ordinal();
+                }
+            }
+
+            // What playing `move` on the board would give, without playing it; `buffer` is scratch space
+            public static MoveStatus check(Board board, int move, int[] buffer) {
+                Piece piece = board.getPiece(Move.from(move));
+                if (piece == null) {
+                    return MoveStatus.NO_PIECE;
+                }
+                if (piece.getColor() != board.getSideToMove()) {
+                    return MoveStatus.NOT_YOUR_TURN;
+                }
+                int count = MoveGenerator.generatePseudoLegalMoves(board, buffer);
+                for (int i = 0; i < count; i++) {
+                    if (buffer[i] == move) {
+                        return MoveGenerator.isLegal(board, move) ? MoveStatus.SUCCESS : MoveStatus.ILLEGAL_MOVE;
+                    }
+                }
+                return MoveStatus.ILLEGAL_MOVE;
+            }
+
+            @SuppressWarnings("serial") // Never serialized; holds buffers that cannot be
+            private static final class Chunk extends RecursiveAction {
+                private final ByteBuffer positions;
+                private final int[] moves;
+                private final byte[] statuses;
+                private final int from;
+                private final int to;
+
+                Chunk(ByteBuffer positions, int[] moves, byte[] statuses, int from, int to) {
+                    this.positions = positions;
+                    this.moves = moves;
+                    this.statuses = statuses;
+                    this.from = from;
+                    this.to = to;
+                }
+
+                @Override
+                protected void compute() {
+                    if (to - from <= CHUNK) {
+                        validateRange(positions, moves, statuses, from, to);
+                        return;
+                    }
+                    int middle = (from + to) >>> 1;
+                    invokeAll(new Chunk(positions, moves, statuses, from, middle),
+                            new Chunk(positions, moves, statuses, middle, to));
+                }
+            }
+
+            // Fill a batch with positions from random games and, for each, a legal move three times out of four
+            // and an arbitrary move code otherwise. For benchmarks; the same seed gives the same batch.
+            static void fillSampleBatch(ByteBuffer positions, int[] moves, long seed) {
+                SplittableRandom random = new SplittableRandom(seed);
+                Board board = new Board();
+                int[] legal = new int[MoveGenerator.MAX_MOVES];
+                for (int i = 0; i < moves.length; ) {
+                    Fen.load(board, Fen.START_POSITION);
+                    for (int ply = random.nextInt(80); i < moves.length; ply--) {
+                        int count = MoveGenerator.generateLegalMoves(board, legal);
+                        if (count == 0) {
+                            break;
+                        }
+                        if (ply <= 0 || random.nextInt(8) == 0) {
+                            PackedPosition.write(board, positions.position(i * PackedPosition.SIZE));
+                            moves[i++] = random.nextInt(4) == 0 ? random.nextInt(1 << 16) : legal[random.nextInt(count)];
+                            if (ply <= 0) {
+                                break;
+                            }
+                        }
+                        board.makeMove(legal[random.nextInt(count)]);
+                    }
+                }
+                positions.clear();
+            }
+
+            // Validations per second of a random batch on pools of 1, 2, 4 ... maxThreads workers
+            static void runScalingBenchmark(int pairs, int maxThreads) {
+                ByteBuffer positions = ByteBuffer.allocateDirect(pairs * PackedPosition.SIZE);
+                int[] moves = new int[pairs];
+                byte[] statuses = new byte[pairs];
+                fillSampleBatch(positions, moves, 42);
+                double single = 0;
+                for (int threads = 1; threads <= maxThreads; threads = threads < maxThreads ? Math.min(threads * 2, maxThreads) : threads + 1) {
+                    ForkJoinPool pool = new ForkJoinPool(threads);
+                    try {
+                        validate(pool, positions, moves, statuses); // Warm-up
+                        long start = System.nanoTime();
+                        int runs = 0;
+                        do {
+                            validate(pool, positions, moves, statuses);
+                            runs++;
+                        } while (System.nanoTime() - start < 2_000_000_000L);
+                        double perSecond = (double) runs * pairs * 1e9 / (System.nanoTime() - start);
+                        if (threads == 1) {
+                            single = perSecond;
+                        }
+                        System.out.printf("threads %2d: %12.0f validations/s, scaling %.2f%n", threads, perSecond, perSecond / single);
+                    } finally {
+                        pool.shutdown();
+                    }
+                }
+                int[] counts = new int[MoveStatus.values().length];
+                for (byte status : statuses) {
+                    counts[status]++;
+                }
+                for (MoveStatus status : MoveStatus.values()) {
+                    if (counts[status.ordinal()] > 0) {
+                        System.out.println(status + ": " + counts[status.ordinal()]);
+                    }
+                }
+            }
+        }
+
+        // Opening book in the Polyglot layout: 16-byte entries of Zobrist key, move, weight and a 32-bit
+        // learn field (unused), sorted by unsigned key. The file is memory-mapped and searched with a binary
+        // search, so a lookup reads a few pages and allocates nothing. Keys and move codes are this program's
+        // own, not the Polyglot ones. A reader can be shared between threads.
+        static final class OpeningBook {
+            static final int ENTRY_SIZE = 16;
+
+            private final MappedByteBuffer entries;
+            private final int entryCount;
+
+            OpeningBook(Path file) throws IOException {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    long size = channel.size();
+                    if (size % ENTRY_SIZE != 0 || size > Integer.MAX_VALUE) {
+                        throw new IOException("Not a book file: " + file);
+                    }
+                    entries = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                    entryCount = (int) (size / ENTRY_SIZE);
+                }
+            }
+
+            public int getEntryCount() {
+                return entryCount;
+            }
+
+            // Index of the first entry with `key`, or of the first larger key
+            private int firstEntry(long key) {
+                int low = 0;
+                int high = entryCount;
+                while (low < high) {
+                    int middle = (low + high) >>> 1;
+                    if (Long.compareUnsigned(keyAt(middle), key) < 0) {
+                        low = middle + 1;
+                    } else {
+                        high = middle;
+                    }
+                }
+                return low;
+            }
+
+            private long keyAt(int entry) {
+                return entries.getLong(entry * ENTRY_SIZE);
+            }
+
+            private int moveAt(int entry) {
+                return entries.getShort(entry * ENTRY_SIZE + 8) & 0xFFFF;
+            }
+
+            private int weightAt(int entry) {
+                return entries.getShort(entry * ENTRY_SIZE + 10) & 0xFFFF;
+            }
+
+            // Copy the book moves and weights for a position into the arrays; returns how many were written
+            public int lookup(long key, int[] moves, int[] weights) {
+                int count = 0;
+                for (int i = firstEntry(key); i < entryCount && keyAt(i) == key && count < moves.length; i++, count++) {
+                    moves[count] = moveAt(i);
+                    weights[count] = weightAt(i);
+                }
+                return count;
+            }
+
+            // A book move for the position, chosen with probability proportional to its weight, or 0 if there is none.
+            // Moves that are not legal in the position (a key collision) are skipped; `buffer` is scratch space.
+            public int pickMove(Board board, SplittableRandom random, int[] buffer) {
+                long key = board.getZobristKey();
+                int first = firstEntry(key);
+                long total = 0;
+                for (int i = first; i < entryCount && keyAt(i) == key; i++) {
+                    if (isPlayable(board, moveAt(i), buffer)) {
+                        total += weightAt(i);
+                    }
+                }
+                if (total == 0) {
+                    return 0;
+                }
+                long pick = random.nextLong(total);
+                for (int i = first; ; i++) {
+                    if (isPlayable(board, moveAt(i), buffer)) {
+                        pick -= weightAt(i);
+                        if (pick < 0) {
+                            return moveAt(i);
+                        }
+                    }
+                }
+            }
+
+            // The legal book move with the highest weight, or 0
+            public int bestMove(Board board, int[] buffer) {
+                long key = board.getZobristKey();
+                int best = 0;
+                int bestWeight = 0;
+                for (int i = firstEntry(key); i < entryCount && keyAt(i) == key; i++) {
+                    if (weightAt(i) > bestWeight && isPlayable(board, moveAt(i), buffer)) {
+                        best = moveAt(i);
+                        bestWeight = weightAt(i);
+                    }
+                }
+                return best;
+            }
+
+            private static boolean isPlayable(Board board, int move, int[] buffer) {
+                return BatchValidator.check(board, move, buffer) == MoveStatus.SUCCESS;
+            }
+
+            // Collects (position, move) pairs from the opening of many games and writes them as a book.
+            // Pairs are kept in two parallel arrays, 12 bytes each, and counted after one sort.
+            static final class Builder {
+                private final int maxPlies;
+                private long[] keys = new long[1 << 16];
+                private int[] moves = new int[1 << 16];
+                private int size;
+                private int[] played = new int[256];
+
+                Builder(int maxPlies) {
+                    this.maxPlies = maxPlies;
+                }
+
+                // Add the first moves of the game played on `board`, which is left as it was.
+                // Synchronized so it can be fed straight from the PGN workers.
+                public synchronized void addGame(Board board) {
+                    int plies = board.getHistorySize();
+                    if (played.length < plies) {
+                        played = new int[Math.max(plies, played.length * 2)];
+                    }
+                    for (int i = plies - 1; i >= 0; i--) {
+                        played[i] = board.getHistoryMove(i);
+                        board.unmakeMove();
+                    }
+                    for (int i = 0; i < plies; i++) {
+                        if (i < maxPlies) {
+                            add(board.getZobristKey(), played[i]);
+                        }
+                        board.makeMove(played[i]);
+                    }
+                }
+
+                private void add(long key, int move) {
+                    if (size == keys.length) {
+                        keys = Arrays.copyOf(keys, size * 2);
+                        moves = Arrays.copyOf(moves, size * 2);
+                    }
+                    keys[size] = key;
+                    moves[size] = move;
+                    size++;
+                }
+
+                // Write every move played at least `minCount` times, weighted by how often it was played.
+                // Returns the number of entries written.
+                public synchronized int write(Path file, int minCount) throws IOException {
+                    sort(0, size - 1);
+                    int written = 0;
+                    ByteBuffer buffer = ByteBuffer.allocateDirect(ENTRY_SIZE * 4096);
+                    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                            StandardOpenOption.TRUNCATE_EXISTING)) {
+                        for (int i = 0; i < size; ) {
+                            int run = i + 1;
+                            while (run < size && keys[run] == keys[i] && moves[run] == moves[i]) {
+                                run++;
+                            }
+                            if (run - i >= minCount) {
+                                if (!buffer.hasRemaining()) {
+                                    flush(buffer, channel);
+                                }
+                                buffer.putLong(keys[i]).putShort((short) moves[i]).putShort((short) Math.min(run - i, 0xFFFF)).putInt(0);
+                                written++;
+                            }
+                            i = run;
+                        }
+                        flush(buffer, channel);
+                    }
+                    return written;
+                }
+
+                private static void flush(ByteBuffer buffer, FileChannel channel) throws IOException {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    buffer.clear();
+                }
+
+                // Quicksort of both arrays by unsigned key, then move
+                private void sort(int low, int high) {
+                    while (high - low > 16) {
+                        int middle = (low + high) >>> 1;
+                        long pivotKey = keys[middle];
+                        int pivotMove = moves[middle];
+                        int i = low;
+                        int j = high;
+                        while (i <= j) {
+                            while (compare(i, pivotKey, pivotMove) < 0) {
+                                i++;
+                            }
+                            while (compare(j, pivotKey, pivotMove) > 0) {
+                                j--;
+                            }
+                            if (i <= j) {
+                                swap(i++, j--);
+                            }
+                        }
+                        // Recurse into the smaller half so the stack stays shallow
+                        if (j - low < high - i) {
+                            sort(low, j);
+                            low = i;
+                        } else {
+                            sort(i, high);
+                            high = j;
+                        }
+                    }
+                    for (int i = low + 1; i <= high; i++) {
+                        for (int j = i; j > low && compare(j, keys[j - 1], moves[j - 1]) < 0; j--) {
+                            swap(j, j - 1);
+                        }
+                    }
+                }
+
+                private int compare(int index, long key, int move) {
+                    int byKey = Long.compareUnsigned(keys[index], key);
+                    return byKey != 0 ? byKey : Integer.compare(moves[index], move);
+                }
+
+                private void swap(int a, int b) {
+                    long key = keys[a];
+                    keys[a] = keys[b];
+                    keys[b] = key;
+                    int move = moves[a];
+                    moves[a] = moves[b];
+                    moves[b] = move;
+                }
+            }
+        }
+
+        // Endgame tablebase built by retrograde analysis. A table covers one material balance, e.g. "KQvK", with
+        // the stronger side as White; positions with the colors reversed are looked up mirrored. A position's
+        // index is side to move * 64^n followed by the squares of its n pieces in table order, and its value is
+        // (distance to mate in plies << 2) | WIN, DRAW or LOSS for the side to move.
+        // Moves come from MoveGenerator, so pieces move exactly as in play. Castling and en passant are not
+        // covered, and tables stop at 4 pieces: 5 would need symmetry reduction to fit in memory.
+        static final class Tablebase {
+            static final int WIN = 1;
+            static final int DRAW = 2;
+            static final int LOSS = 3;
+            static final int MAX_PIECES = 4;
+            private static final short ILLEGAL = -1; // during generation: no such position
+            private static final int MAGIC = 0x54423031; // "TB01"
+            private static final int HEADER_SIZE = 32;
+            private static final String LETTERS = "PNBRQK"; // indexed by PieceType
+            private static final int CHUNK = 4096; // positions per fork-join task
+            private static final int BLOCK_LONGS = 512; // 4KB blocks in the probe cache
+            private static final int CACHE_BLOCKS = 256;
+
+            final String name;
+            final long materialKey;
+            private final int pieceCount;
+            private final int[] slotCodes; // color * 6 + type per piece, White's first, strongest first
+            private final long size;
+            private Tablebase[] dependencies = new Tablebase[0]; // tables reached by captures and promotions
+            private int maxDistance;
+            private long generationMillis;
+
+            // Values while the table is in memory, 0 while unknown
+            private short[] values;
+
+            // Values read from a file: bit-packed entries behind a direct-mapped cache of 4KB blocks. Blocks are
+            // immutable and published whole, so probing threads share the cache without locking; two threads
+            // missing on the same slot both load a block and the last one stays.
+            private LongBuffer packed;
+            private int entryBits;
+            private AtomicReferenceArray<CachedBlock> cache;
+
+            private Tablebase(String name) {
+                int split = name.indexOf('v');
+                if (split < 0) {
+                    throw new IllegalArgumentException("Material must look like KQvK: " + name);
+                }
+                int[] codes = new int[name.length() - 1];
+                int count = 0;
+                for (int i = 0; i < name.length(); i++) {
+                    if (i == split) {
+                        continue;
+                    }
+                    int type = LETTERS.indexOf(name.charAt(i));
+                    if (type < 0) {
+                        throw new IllegalArgumentException("Unknown piece '" + name.charAt(i) + "' in " + name);
+                    }
+                    codes[count++] = (i < split ? 0 : 6) + type;
+                }
+                slotCodes = canonical(codes, count);
+                this.name = nameOf(slotCodes);
+                pieceCount = slotCodes.length;
+                long whiteSignature = 0;
+                long blackSignature = 0;
+                int kings = 0;
+                for (int code : slotCodes) {
+                    if (code % 6 == PieceType.KING.ordinal()) {
+                        kings += code < 6 ? 1 : 16;
+                    } else if (code < 6) {
+                        whiteSignature += 1L << (4 * code);
+                    } else {
+                        blackSignature += 1L << (4 * (code - 6));
+                    }
+                }
+                if (kings != 17) {
+                    throw new IllegalArgumentException("Each side needs exactly one king: " + name);
+                }
+                materialKey = (whiteSignature << 20) | blackSignature;
+                long positions = 2;
+                for (int i = 0; i < pieceCount; i++) {
+                    positions *= 64;
+                }
+                size = positions;
+            }
+
+            // Piece codes sorted White first and strongest first, with the colors swapped if Black is stronger
+            private static int[] canonical(int[] codes, int count) {
+                long white = 0;
+                long black = 0;
+                for (int i = 0; i < count; i++) {
+                    if (codes[i] % 6 != PieceType.KING.ordinal()) {
+                        if (codes[i] < 6) {
+                            white += 1L << (4 * codes[i]);
+                        } else {
+                            black += 1L << (4 * (codes[i] - 6));
+                        }
+                    }
+                }
+                int[] sorted = new int[count];
+                for (int i = 0; i < count; i++) {
+                    int code = codes[i];
+                    sorted[i] = white < black ? (code + 6) % 12 : code;
+                }
+                // White (0-5) before Black (6-11), higher type first within a color
+                Arrays.sort(sorted);
+                for (int start = 0; start < count; ) {
+                    int end = start;
+                    while (end < count && sorted[end] / 6 == sorted[start] / 6) {
+                        end++;
+                    }
+                    for (int i = start, j = end - 1; i < j; i++, j--) {
+                        int swap = sorted[i];
+                        sorted[i] = sorted[j];
+                        sorted[j] = swap;
+                    }
+                    start = end;
+                }
+                return sorted;
+            }
+
+            private static String nameOf(int[] codes) {
+                StringBuilder sb = new StringBuilder(codes.length + 1);
+                for (int i = 0; i < codes.length; i++) {
+                    if (i > 0 && codes[i] >= 6 && codes[i - 1] < 6) {
+                        sb.append('v');
+                    }
+                    sb.append(LETTERS.charAt(codes[i] % 6));
+                }
+                return sb.toString();
+            }
+
+            // Material of the board as a table key: counts of pawns to queens, 4 bits each, White's above Black's
+            static long materialKey(Board board, boolean mirrored) {
+                long white = 0;
+                long black = 0;
+                for (int type = 0; type < PieceType.KING.ordinal(); type++) {
+                    white += (long) Long.bitCount(board.pieceBitboards[0][type]) << (4 * type);
+                    black += (long) Long.bitCount(board.pieceBitboards[1][type]) << (4 * type);
+                }
+                return mirrored ? (black << 20) | white : (white << 20) | black;
+            }
+
+            // Index of the board's position; `mirrored` swaps the colors and flips the board vertically
+            long indexOf(Board board, boolean mirrored) {
+                int flip = mirrored ? 1 : 0;
+                long index = board.getSideToMove().ordinal() ^ flip;
+                long squares = 0;
+                for (int i = 0; i < pieceCount; i++) {
+                    if (i == 0 || slotCodes[i] != slotCodes[i - 1]) {
+                        long bits = board.pieceBitboards[(slotCodes[i] / 6) ^ flip][slotCodes[i] % 6];
+                        squares = mirrored ? Long.reverseBytes(bits) : bits; // reversing the bytes flips the rows
+                    }
+                    index = index * 64 + Long.numberOfTrailingZeros(squares);
+                    squares &= squares - 1; // Equal pieces are stored in ascending square order
+                }
+                return index;
+            }
+
+            // Set the board to position `index`; false if there is no such legal position
+            private boolean setUp(long index, Board board, int[] squares) {
+                long occupied = 0;
+                long rest = index;
+                for (int i = pieceCount - 1; i >= 0; i--) {
+                    squares[i] = (int) (rest & 63);
+                    rest >>>= 6;
+                    occupied |= 1L << squares[i];
+                }
+                if (Long.bitCount(occupied) != pieceCount) {
+                    return false;
+                }
+                for (int i = 0; i < pieceCount; i++) {
+                    if (slotCodes[i] % 6 == PieceType.PAWN.ordinal() && (squares[i] < 8 || squares[i] >= 56)) {
+                        return false;
+                    }
+                    if (i > 0 && slotCodes[i] == slotCodes[i - 1] && squares[i] < squares[i - 1]) {
+                        return false; // Same position as the ascending order
+                    }
+                }
+                board.clearHistory();
+                for (long bits = board.getOccupied() & ~occupied; bits != 0; bits &= bits - 1) {
+                    board.setSquare(Long.numberOfTrailingZeros(bits), -1);
+                }
+                // Clear the squares that change before placing anything, so an old king is never removed
+                // after its replacement has been placed
+                for (int i = 0; i < pieceCount; i++) {
+                    Piece current = board.getPiece(squares[i]);
+                    if (current != null && current.colorIndex * 6 + current.typeIndex != slotCodes[i]) {
+                        board.setSquare(squares[i], -1);
+                    }
+                }
+                for (int i = 0; i < pieceCount; i++) {
+                    board.setSquare(squares[i], slotCodes[i]);
+                }
+                Color toMove = rest == 0 ? Color.WHITE : Color.BLACK;
+                board.setSideToMove(toMove);
+                board.setCastlingRights(0);
+                board.setEnPassantSquare(-1);
+                board.setHalfmoveClock(0);
+                return !board.isInCheck(toMove == Color.WHITE ? Color.BLACK : Color.WHITE);
+            }
+
+            // Value at an index: (distance << 2) | WDL, 0 for unknown or impossible positions
+            int value(long index) {
+                if (values != null) {
+                    short value = values[(int) index];
+                    return value == ILLEGAL ? 0 : value;
+                }
+                return packedValue(index);
+            }
+
+            private int packedValue(long index) {
+                long bit = index * entryBits;
+                long word = bit >>> 6;
+                int shift = (int) (bit & 63);
+                long value = cachedWord(word) >>> shift;
+                if (shift + entryBits > 64) {
+                    value |= cachedWord(word + 1) << (64 - shift);
+                }
+                return (int) (value & ((1L << entryBits) - 1));
+            }
+
+            private long cachedWord(long word) {
+                long block = word / BLOCK_LONGS;
+                int slot = (int) (block % CACHE_BLOCKS);
+                CachedBlock cached = cache.get(slot);
+                if (cached == null || cached.block != block) {
+                    int start = (int) (block * BLOCK_LONGS);
+                    long[] words = new long[BLOCK_LONGS];
+                    packed.get(start, words, 0, Math.min(BLOCK_LONGS, packed.limit() - start)); // Absolute: no buffer state changes
+                    cached = new CachedBlock(block, words);
+                    cache.set(slot, cached);
+                }
+                return cached.words[(int) (word % BLOCK_LONGS)];
+            }
+
+            private static final class CachedBlock {
+                final long block;
+                final long[] words;
+
+                CachedBlock(long block, long[] words) {
+                    this.block = block;
+                    this.words = words;
+                }
+            }
+
+            public int getMaxDistance() {
+                return maxDistance;
+            }
+
+            public long getGenerationMillis() {
+                return generationMillis;
+            }
+
+            // Value of the position on the board from this table or one of its dependencies
+            private int childValue(Board board) {
+                long key = materialKey(board, false);
+                long mirroredKey = materialKey(board, true);
+                if (key == materialKey) {
+                    return value(indexOf(board, false));
+                }
+                if (mirroredKey == materialKey) {
+                    return value(indexOf(board, true));
+                }
+                for (Tablebase dependency : dependencies) {
+                    if (dependency.materialKey == key) {
+                        return dependency.value(dependency.indexOf(board, false));
+                    }
+                    if (dependency.materialKey == mirroredKey) {
+                        return dependency.value(dependency.indexOf(board, true));
+                    }
+                }
+                throw new IllegalStateException("No table for a move out of " + name);
+            }
+
+            // Generate the table for `name` and, first, every table its captures and promotions lead to.
+            // Tables already in `generated` are reused; new ones are added to it.
+            static Tablebase generate(String name, ForkJoinPool pool, Map<String, Tablebase> generated) {
+                Tablebase table = new Tablebase(name);
+                Tablebase existing = generated.get(table.name);
+                if (existing != null) {
+                    return existing;
+                }
+                if (table.pieceCount > MAX_PIECES) {
+                    throw new IllegalArgumentException(table.name + " has more than " + MAX_PIECES + " pieces");
+                }
+                List<Tablebase> dependencies = new ArrayList<>();
+                int maxDependencyDistance = 0;
+                for (int i = 0; i < table.pieceCount; i++) {
+                    int code = table.slotCodes[i];
+                    if (code % 6 == PieceType.KING.ordinal() || (i > 0 && code == table.slotCodes[i - 1])) {
+                        continue;
+                    }
+                    int[] codes = table.slotCodes.clone();
+                    int[] captured = new int[codes.length - 1];
+                    System.arraycopy(codes, 0, captured, 0, i);
+                    System.arraycopy(codes, i + 1, captured, i, codes.length - i - 1);
+                    dependencies.add(generate(nameOf(canonical(captured, captured.length)), pool, generated));
+                    if (code % 6 == PieceType.PAWN.ordinal()) {
+                        for (int promotion = PieceType.KNIGHT.ordinal(); promotion <= PieceType.QUEEN.ordinal(); promotion++) {
+                            codes[i] = code - PieceType.PAWN.ordinal() + promotion;
+                            dependencies.add(generate(nameOf(canonical(codes, codes.length)), pool, generated));
+                        }
+                    }
+                }
+                for (Tablebase dependency : dependencies) {
+                    maxDependencyDistance = Math.max(maxDependencyDistance, dependency.maxDistance);
+                }
+                table.dependencies = dependencies.toArray(new Tablebase[0]);
+
+                long start = System.nanoTime();
+                table.values = new short[(int) table.size];
+                // Pass 0 finds mates and stalemates; pass n the wins and losses in n plies. Values from other
+                // tables can be as deep as their own distances, so passes go on at least that long.
+                for (int pass = 0; ; pass++) {
+                    LongAdder changes = new LongAdder();
+                    pool.invoke(table.new Pass(pass, 0, table.size, changes));
+                    if (pass > maxDependencyDistance + 1 && changes.sum() == 0) {
+                        break;
+                    }
+                }
+                for (int i = 0; i < table.values.length; i++) {
+                    if (table.values[i] == 0) {
+                        table.values[i] = DRAW; // Nobody can force mate
+                    }
+                    if (table.values[i] != ILLEGAL) {
+                        table.maxDistance = Math.max(table.maxDistance, table.values[i] >>> 2);
+                    }
+                }
+                table.generationMillis = (System.nanoTime() - start) / 1_000_000;
+                generated.put(table.name, table);
+                return table;
+            }
+
+            // Board and buffers of one generator thread
+            private static final class Scratch {
+                final Board board = new Board();
+                final int[] moves = new int[MoveGenerator.MAX_MOVES];
+                final int[] squares = new int[MAX_PIECES];
+            }
+
+            private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+            // One pass over a range of positions. Every task writes only its own positions; values read from
+            // positions settled in the same pass are taken into account only from the next pass on.
+            @SuppressWarnings("serial") // Never serialized
+            private final class Pass extends RecursiveAction {
+                private final int pass;
+                private final long from;
+                private final long to;
+                private final LongAdder changes;
+
+                Pass(int pass, long from, long to, LongAdder changes) {
+                    this.pass = pass;
+                    this.from = from;
+                    this.to = to;
+                    this.changes = changes;
+                }
+
+                @Override
+                protected void compute() {
+                    if (to - from > CHUNK) {
+                        long middle = (from + to) >>> 1;
+                        invokeAll(new Pass(pass, from, middle, changes), new Pass(pass, middle, to, changes));
+                        return;
+                    }
+                    Scratch scratch = SCRATCH.get();
+                    Board board = scratch.board;
+                    int changed = 0;
+                    for (long index = from; index < to; index++) {
+                        int i = (int) index;
+                        if (pass == 0) {
+                            if (!setUp(index, board, scratch.squares)) {
+                                values[i] = ILLEGAL;
+                            } else if (MoveGenerator.generateLegalMoves(board, scratch.moves) == 0) {
+                                values[i] = (short) (board.isInCheck(board.getSideToMove()) ? LOSS : DRAW);
+                                changed++;
+                            }
+                            continue;
+                        }
+                        if (values[i] != 0) {
+                            continue;
+                        }
+                        setUp(index, board, scratch.squares);
+                        int count = MoveGenerator.generateLegalMoves(board, scratch.moves);
+                        int fastestWin = Integer.MAX_VALUE; // shortest loss among the replies
+                        int slowestLoss = 0; // longest win among the replies
+                        boolean allWins = true;
+                        for (int m = 0; m < count; m++) {
+                            board.makeMove(scratch.moves[m]);
+                            int child = childValue(board);
+                            board.unmakeMove();
+                            int wdl = child & 3;
+                            if (wdl == LOSS) {
+                                fastestWin = Math.min(fastestWin, child >>> 2);
+                            } else if (wdl == WIN) {
+                                slowestLoss = Math.max(slowestLoss, child >>> 2);
+                            } else {
+                                allWins = false; // Draw, or not settled yet
+                            }
+                        }
+                        if (fastestWin < pass) {
+                            values[i] = (short) (((fastestWin + 1) << 2) | WIN);
+                            changed++;
+                        } else if (allWins && slowestLoss < pass) {
+                            values[i] = (short) (((slowestLoss + 1) << 2) | LOSS);
+                            changed++;
+                        }
+                    }
+                    changes.add(changed);
+                }
+            }
+
+            // Write the values bit-packed, 2 bits of WDL plus just enough bits for the longest distance
+            void write(Path file) throws IOException {
+                int bits = 2 + (64 - Long.numberOfLeadingZeros(maxDistance));
+                ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+                buffer.putInt(MAGIC).putInt(bits).putLong(size).putInt(maxDistance);
+                buffer.position(HEADER_SIZE);
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                    long word = 0;
+                    int used = 0;
+                    for (long i = 0; i < size; i++) {
+                        long value = value(i);
+                        word |= value << used;
+                        used += bits;
+                        if (used >= 64) {
+                            if (!buffer.hasRemaining()) {
+                                flush(buffer, channel);
+                            }
+                            buffer.putLong(word);
+                            used -= 64;
+                            word = used == 0 ? 0 : value >>> (bits - used);
+                        }
+                    }
+                    if (used > 0) {
+                        if (!buffer.hasRemaining()) {
+                            flush(buffer, channel);
+                        }
+                        buffer.putLong(word);
+                    }
+                    flush(buffer, channel);
+                }
+            }
+
+            private static void flush(ByteBuffer buffer, FileChannel channel) throws IOException {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                buffer.clear();
+            }
+
+            // Open a table written by write(); the material is taken from the file name, e.g. KQvK.tb
+            static Tablebase open(Path file) throws IOException {
+                String fileName = file.getFileName().toString();
+                Tablebase table = new Tablebase(fileName.substring(0, fileName.length() - ".tb".length()));
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                    if (mapped.getInt(0) != MAGIC || mapped.getLong(8) != table.size) {
+                        throw new IOException("Not a tablebase for " + table.name + ": " + file);
+                    }
+                    table.entryBits = mapped.getInt(4);
+                    table.maxDistance = mapped.getInt(16);
+                    table.packed = mapped.slice(HEADER_SIZE, (int) channel.size() - HEADER_SIZE).asLongBuffer();
+                }
+                table.cache = new AtomicReferenceArray<>(CACHE_BLOCKS);
+                return table;
+            }
+        }
+
+        // The tablebase files of a directory, found by the material on the board
+        static final class Tablebases {
+            private final Map<Long, Tablebase> tables = new HashMap<>();
+
+            Tablebases(Path directory) throws IOException {
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.tb")) {
+                    for (Path file : files) {
+                        Tablebase table = Tablebase.open(file);
+                        tables.put(table.materialKey, table);
+                    }
+                }
+            }
+
+            public int size() {
+                return tables.size();
+            }
+
+            // (distance to mate in plies << 2) | WDL for the side to move, or 0 if no table covers the position
+            public int probe(Board board) {
+                if (Long.bitCount(board.getOccupied()) > Tablebase.MAX_PIECES || board.getCastlingRights() != 0) {
+                    return 0;
+                }
+                int enPassant = board.getEnPassantSquare();
+                int us = board.getSideToMove().ordinal();
+                if (enPassant >= 0 && (AttackTables.PAWN_ATTACKS[us ^ 1][enPassant] & board.pieceBitboards[us][PieceType.PAWN.ordinal()]) != 0) {
+                    return 0; // The tables do not know about the en passant capture
+                }
+                Tablebase table = tables.get(Tablebase.materialKey(board, false));
+                if (table != null) {
+                    return table.value(table.indexOf(board, false));
+                }
+                table = tables.get(Tablebase.materialKey(board, true));
+                return table == null ? 0 : table.value(table.indexOf(board, true));
+            }
+
+            // The move that keeps the best result: the fastest win, else a draw, else the slowest loss.
+            // 0 if the position or one of its moves is not covered; `buffer` is scratch space.
+            public int bestMove(Board board, int[] buffer) {
+                int count = MoveGenerator.generateLegalMoves(board, buffer);
+                int best = 0;
+                int bestRank = Integer.MIN_VALUE;
+                for (int i = 0; i < count; i++) {
+                    board.makeMove(buffer[i]);
+                    int child = probe(board);
+                    board.unmakeMove();
+                    if (child == 0) {
+                        return 0;
+                    }
+                    int distance = child >>> 2;
+                    int rank = (child & 3) == Tablebase.LOSS ? 100_000 - distance : (child & 3) == Tablebase.WIN ? distance - 100_000 : 0;
+                    if (rank > bestRank) {
+                        best = buffer[i];
+                        bestRank = rank;
+                    }
+                }
+                return best;
+            }
+
+            // Generate `names` and the tables they depend on into `directory` and print time, size and the
+            // longest mate of each, then the probe rate on random positions of the last one
+            static void runBenchmark(Path directory, int threads, String... names) throws IOException {
+                Files.createDirectories(directory);
+                Map<String, Tablebase> generated = new LinkedHashMap<>();
+                ForkJoinPool pool = new ForkJoinPool(threads);
+                try {
+                    for (String name : names) {
+                        Tablebase.generate(name, pool, generated);
+                    }
+                } finally {
+                    pool.shutdown();
+                }
+                for (Tablebase table : generated.values()) {
+                    Path file = directory.resolve(table.name + ".tb");
+                    table.write(file);
+                    System.out.printf("%-6s %10d positions, generated in %6d ms, %9d bytes, longest mate %d plies%n",
+                            table.name, table.size, table.getGenerationMillis(), Files.size(file), table.getMaxDistance());
+                }
+
+                Tablebases tablebases = new Tablebases(directory);
+                Tablebase last = Tablebase.open(directory.resolve(new Tablebase(names[names.length - 1]).name + ".tb"));
+                Board board = new Board();
+                int[] squares = new int[Tablebase.MAX_PIECES];
+                SplittableRandom random = new SplittableRandom(1);
+                long probes = 0;
+                long checksum = 0;
+                long start = System.nanoTime();
+                while (System.nanoTime() - start < 1_000_000_000L) {
+                    if (last.setUp(random.nextLong(last.size), board, squares)) {
+                        checksum += tablebases.probe(board);
+                        probes++;
+                    }
+                }
+                System.out.println(probes * 1_000_000_000L / (System.nanoTime() - start) + " probes/s on " + last.name
+                        + " through the block cache (checksum " + checksum + ")");
+            }
+        }
+
+        // Generates every legal move of the side to move into a caller-supplied int buffer.
+        // Pseudo-legal moves are produced from the attack tables and each one is kept only if the
+        // own king is not attacked once the move is played on the occupancy masks, which covers
+        // checks, pins and en passant discoveries without touching the board.
+        static final class MoveGenerator {
+            static final int MAX_MOVES = 256; // more than any legal position can have
+            static final int MAX_PLY = 64;
+
+            private static final long RANK_1 = 0xFF00000000000000L; // row 7
+            private static final long RANK_8 = 0x00000000000000FFL; // row 0
+
+            // Positions with known node counts for depth 1, 2, ...: the starting position and the
+            // standard test positions that exercise castling, en passant, promotions and pins
+            static final String[] PERFT_POSITIONS = {
+                    Fen.START_POSITION,
+                    "r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 1",
+                    "8/2p5/3p4/KP5r/1R3p1k/8/4P1P1/8 w - - 0 1",
+                    "r3k2r/Pppp1ppp/1b3nbN/nP6/BBP1P3/q4N2/Pp1P2PP/R2Q1RK1 w kq - 0 1",
+                    "rnbq1k1r/pp1Pbppp/2p5/8/2B5/8/PPP1NnPP/RNBQK2R w KQ - 1 8",
+                    "r4rk1/1pp1qppp/p1np1n2/2b1p1B1/2B1P1b1/P1NP1N2/1PP1QPPP/R4RK1 w - - 0 10"
+            };
+            static final long[][] PERFT_COUNTS = {
+                    {20L, 400L, 8902L, 197281L, 4865609L, 119060324L},
+                    {48L, 2039L, 97862L, 4085603L, 193690690L},
+                    {14L, 191L, 2812L, 43238L, 674624L, 11030083L},
+                    {6L, 264L, 9467L, 422333L, 15833292L},
+                    {44L, 1486L, 62379L, 2103487L, 89941194L},
+                    {46L, 2079L, 89890L, 3894594L, 164075551L}
+            };
+
+            private final Board board;
+            private final int[][] moveBuffers = new int[MAX_PLY][MAX_MOVES];
+
+            public MoveGenerator(Board board) {
+                this.board = board;
+            }
+
+            // Fill `moves` with every legal move of the side to move and return how many were written
+            public static int generateLegalMoves(Board board, int[] moves) {
+                int count = generatePseudoLegalMoves(board, moves);
+                int legal = 0;
+                for (int i = 0; i < count; i++) {
+                    if (isLegal(board, moves[i])) {
+                        moves[legal++] = moves[i];
+                    }
+                }
+                return legal;
+            }
+
+            // Number of leaf nodes of the legal move tree `depth` plies deep
+            public long perft(int depth) {
+                return perft(depth, 0);
+            }
+
+            private long perft(int depth, int ply) {
+                int[] moves = moveBuffers[ply];
+                int count = generateLegalMoves(board, moves);
+                if (depth == 1) {
+                    return count;
+                }
+                long nodes = 0;
+                for (int i = 0; i < count; i++) {
+                    board.makeMove(moves[i]);
+                    nodes += perft(depth - 1, ply + 1);
+                    board.unmakeMove();
+                }
+                return nodes;
+            }
+
+            // Run perft on the starting position and print node counts and speed
+            static void runPerftSuite(int maxDepth) {
+                Board board = new Board();
+                MoveGenerator generator = new MoveGenerator(board);
+                for (int position = 0; position < PERFT_POSITIONS.length; position++) {
+                    System.out.println(PERFT_POSITIONS[position]);
+                    long[] counts = PERFT_COUNTS[position];
+                    for (int depth = 1; depth <= Math.min(maxDepth, counts.length); depth++) {
+                        Fen.load(board, PERFT_POSITIONS[position]);
+                        long start = System.nanoTime();
+                        long nodes = generator.perft(depth);
+                        long elapsed = Math.max(1, System.nanoTime() - start);
+                        long expected = counts[depth - 1];
+                        System.out.println("perft(" + depth + ") = " + nodes + (nodes == expected ? " OK" : " expected " + expected)
+                                + ", " + (nodes * 1_000_000_000L / elapsed) + " nodes/s");
+                    }
+                }
+            }
+
+            // Make and take back every legal move of the suite positions, and every move of the side not to move
+            // played out of turn, checking that the FEN and the Zobrist key come back unchanged
+            static void runMakeUnmakeCheck() {
+                Board board = new Board();
+                int[] moves = new int[MAX_MOVES];
+                StringBuilder before = new StringBuilder(90);
+                StringBuilder after = new StringBuilder(90);
+                long checked = 0;
+                long failures = 0;
+                for (String fen : PERFT_POSITIONS) {
+                    Fen.load(board, fen);
+                    Color toMove = board.getSideToMove();
+                    for (int outOfTurn = 0; outOfTurn < 2; outOfTurn++) {
+                        board.setSideToMove(outOfTurn == 0 ? toMove : toMove == Color.WHITE ? Color.BLACK : Color.WHITE);
+                        int count = generateLegalMoves(board, moves);
+                        board.setSideToMove(toMove);
+                        before.setLength(0);
+                        Fen.write(board, before);
+                        long key = board.getZobristKey();
+                        for (int i = 0; i < count; i++) {
+                            board.makeMove(moves[i]);
+                            board.unmakeMove();
+                            after.setLength(0);
+                            Fen.write(board, after);
+                            checked++;
+                            if (board.getZobristKey() != key || !before.toString().contentEquals(after)) {
+                                failures++;
+                                System.out.println("make/unmake " + Move.toString(moves[i]) + (outOfTurn == 1 ? " out of turn" : "")
+                                        + " on " + fen + " left " + after);
+                            }
+                        }
+                    }
+                }
+                System.out.println("make/unmake: " + checked + " moves" + (failures == 0 ? " OK" : ", " + failures + " failed"));
+            }
+
+            // Legal move written in long algebraic notation (e.g. "e2e4", "e7e8q"), or 0 if there is none
+            static int parseMove(Board board, String text) {
+                int[] moves = new int[MAX_MOVES];
+                int count = generateLegalMoves(board, moves);
+                for (int i = 0; i < count; i++) {
+                    if (Move.toString(moves[i]).equals(text)) {
+                        return moves[i];
+                    }
+                }
+                return 0;
+            }
+
+            // Pseudo-legal moves: piece movement rules only, the own king may be left in check
+            static int generatePseudoLegalMoves(Board board, int[] moves) {
+                int us = board.getSideToMove().ordinal();
+                int them = us ^ 1;
+                long own = board.colorOccupancy[us];
+                long enemy = board.colorOccupancy[them];
+                long occupied = own | enemy;
+                long[] pieces = board.pieceBitboards[us];
+                int count = 0;
+
+                count = generatePawnMoves(board, moves, count, us, pieces[PieceType.PAWN.ordinal()], enemy, occupied);
+
+                for (long bits = pieces[PieceType.KNIGHT.ordinal()]; bits != 0; bits &= bits - 1) {
+                    int from = Long.numberOfTrailingZeros(bits);
+                    count = addMoves(moves, count, from, AttackTables.KNIGHT_ATTACKS[from] & ~own, enemy);
+                }
+                for (long bits = pieces[PieceType.BISHOP.ordinal()]; bits != 0; bits &= bits - 1) {
+                    int from = Long.numberOfTrailingZeros(bits);
+                    count = addMoves(moves, count, from, AttackTables.bishopAttacks(from, occupied) & ~own, enemy);
+                }
+                for (long bits = pieces[PieceType.ROOK.ordinal()]; bits != 0; bits &= bits - 1) {
+                    int from = Long.numberOfTrailingZeros(bits);
+                    count = addMoves(moves, count, from, AttackTables.rookAttacks(from, occupied) & ~own, enemy);
+                }
+                for (long bits = pieces[PieceType.QUEEN.ordinal()]; bits != 0; bits &= bits - 1) {
+                    int from = Long.numberOfTrailingZeros(bits);
+                    count = addMoves(moves, count, from, AttackTables.queenAttacks(from, occupied) & ~own, enemy);
+                }
+                for (long bits = pieces[PieceType.KING.ordinal()]; bits != 0; bits &= bits - 1) {
+                    int from = Long.numberOfTrailingZeros(bits);
+                    count = addMoves(moves, count, from, AttackTables.KING_ATTACKS[from] & ~own, enemy);
+                }
+                return generateCastling(board, moves, count, us, occupied);
+            }
+
+            private static int addMoves(int[] moves, int count, int from, long targets, long enemy) {
+                for (; targets != 0; targets &= targets - 1) {
+                    int to = Long.numberOfTrailingZeros(targets);
+                    moves[count++] = Move.encode(from, to, (enemy & (1L << to)) != 0 ? Move.CAPTURE : Move.QUIET);
+                }
+                return count;
+            }
+
+            private static int generatePawnMoves(Board board, int[] moves, int count, int us, long pawns, long enemy, long occupied) {
+                boolean white = us == Color.WHITE.ordinal();
+                int forward = white ? -8 : 8; // White moves up (towards row 0)
+                long promotionRank = white ? RANK_8 : RANK_1;
+                long doublePushRank = white ? 0x0000FF0000000000L : 0x0000000000FF0000L; // row 5 / row 2 after one step
+                long epBit = board.getEnPassantSquare() >= 0 ? 1L << board.getEnPassantSquare() : 0L;
+
+                for (long bits = pawns; bits != 0; bits &= bits - 1) {
+                    int from = Long.numberOfTrailingZeros(bits);
+                    int single = from + forward;
+                    if ((occupied & (1L << single)) == 0) {
+                        if (((1L << single) & promotionRank) != 0) {
+                            count = addPromotions(moves, count, from, single, Move.PROMOTION);
+                        } else {
+                            moves[count++] = Move.encode(from, single, Move.QUIET);
+                            int dbl = single + forward;
+                            if (((1L << single) & doublePushRank) != 0 && (occupied & (1L << dbl)) == 0) {
+                                moves[count++] = Move.encode(from, dbl, Move.DOUBLE_PAWN_PUSH);
+                            }
+                        }
+                    }
+                    long attacks = AttackTables.PAWN_ATTACKS[us][from];
+                    for (long captures = attacks & enemy; captures != 0; captures &= captures - 1) {
+                        int to = Long.numberOfTrailingZeros(captures);
+                        if (((1L << to) & promotionRank) != 0) {
+                            count = addPromotions(moves, count, from, to, Move.PROMOTION_CAPTURE);
+                        } else {
+                            moves[count++] = Move.encode(from, to, Move.CAPTURE);
+                        }
+                    }
+                    if ((attacks & epBit) != 0) {
+                        moves[count++] = Move.encode(from, board.getEnPassantSquare(), Move.EN_PASSANT);
+                    }
+                }
+                return count;
+            }
+
+            private static int addPromotions(int[] moves, int count, int from, int to, int baseFlags) {
+                for (int piece = 3; piece >= 0; piece--) { // queen first
+                    moves[count++] = Move.encode(from, to, baseFlags + piece);
+                }
+                return count;
+            }
+
+            // Castling needs the right, the rook at home, empty squares between and no attacked king square
+            private static int generateCastling(Board board, int[] moves, int count, int us, long occupied) {
+                boolean white = us == Color.WHITE.ordinal();
+                int rights = board.getCastlingRights() >> (white ? 0 : 2);
+                if ((rights & 3) == 0) {
+                    return count;
+                }
+                int kingSquare = white ? Board.squareIndex(7, 4) : Board.squareIndex(0, 4);
+                long rooks = board.pieceBitboards[us][PieceType.ROOK.ordinal()];
+                if ((board.pieceBitboards[us][PieceType.KING.ordinal()] & (1L << kingSquare)) == 0) {
+                    return count;
+                }
+                Color enemy = white ? Color.BLACK : Color.WHITE;
+                if ((rights & 1) != 0 && (rooks & (1L << (kingSquare + 3))) != 0
+                        && (occupied & ((1L << (kingSquare + 1)) | (1L << (kingSquare + 2)))) == 0
+                        && !board.isSquareAttacked(kingSquare, enemy)
+                        && !board.isSquareAttacked(kingSquare + 1, enemy)
+                        && !board.isSquareAttacked(kingSquare + 2, enemy)) {
+                    moves[count++] = Move.encode(kingSquare, kingSquare + 2, Move.KING_CASTLE);
+                }
+                if ((rights & 2) != 0 && (rooks & (1L << (kingSquare - 4))) != 0
+                        && (occupied & ((1L << (kingSquare - 1)) | (1L << (kingSquare - 2)) | (1L << (kingSquare - 3)))) == 0
+                        && !board.isSquareAttacked(kingSquare, enemy)
+                        && !board.isSquareAttacked(kingSquare - 1, enemy)
+                        && !board.isSquareAttacked(kingSquare - 2, enemy)) {
+                    moves[count++] = Move.encode(kingSquare, kingSquare - 2, Move.QUEEN_CASTLE);
+                }
+                return count;
+            }
+
+            // True if the move does not leave the mover's king attacked
+            static boolean isLegal(Board board, int move) {
+                int us = board.getSideToMove().ordinal();
+                int them = us ^ 1;
+                long king = board.pieceBitboards[us][PieceType.KING.ordinal()];
+                if (king == 0) {
+                    return true; // No king to protect (e.g. hand-built positions)
+                }
+                int from = Move.from(move);
+                int to = Move.to(move);
+                long fromBit = 1L << from;
+                long toBit = 1L << to;
+                int kingSquare = (king & fromBit) != 0 ? to : Long.numberOfTrailingZeros(king);
+
+                long removed = toBit; // enemy piece captured by this move, if any
+                long occupied = (board.getOccupied() & ~fromBit) | toBit;
+                if (Move.flags(move) == Move.EN_PASSANT) {
+                    removed = 1L << (to + (us == Color.WHITE.ordinal() ? 8 : -8));
+                    occupied &= ~removed;
+                }
+
+                long[] enemy = board.pieceBitboards[them];
+                long keep = ~removed;
+                return ((AttackTables.KNIGHT_ATTACKS[kingSquare] & enemy[PieceType.KNIGHT.ordinal()] & keep)
+                        | (AttackTables.KING_ATTACKS[kingSquare] & enemy[PieceType.KING.ordinal()])
+                        | (AttackTables.PAWN_ATTACKS[us][kingSquare] & enemy[PieceType.PAWN.ordinal()] & keep)
+                        | (AttackTables.bishopAttacks(kingSquare, occupied)
+                                & (enemy[PieceType.BISHOP.ordinal()] | enemy[PieceType.QUEEN.ordinal()]) & keep)
+                        | (AttackTables.rookAttacks(kingSquare, occupied)
+                                & (enemy[PieceType.ROOK.ordinal()] | enemy[PieceType.QUEEN.ordinal()]) & keep)) == 0;
+            }
+        }
+
+        // Fixed-size transposition table shared by any number of search threads without locks.
+        // Entries live in a flat long[]: two longs per entry, the key XORed with the data and the data
+        // itself. A torn write from two threads fails the key check on probe and is just a miss.
+        // Buckets hold two entries: a depth-preferred one and one that is always replaced.
+        static final class TranspositionTable {
+            static final int BOUND_EXACT = 1;
+            static final int BOUND_LOWER = 2; // score is at least this (fail high)
+            static final int BOUND_UPPER = 3; // score is at most this (fail low)
+            static final int DEFAULT_SIZE_MB = 64;
+
+            private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(long[].class);
+
+            private final long[] slots; // bucket i uses slots[4i .. 4i+3]
+            private final int bucketMask;
+            private volatile int age; // bumped per search so stale deep entries can be replaced
+
+            private final LongAdder probes = new LongAdder();
+            private final LongAdder hits = new LongAdder();
+            private final LongAdder collisions = new LongAdder();
+            private final LongAdder stores = new LongAdder();
+
+            public TranspositionTable(int megabytes) {
+                long buckets = Long.highestOneBit(Math.max(1L, ((long) megabytes << 20) / 32)); // 32 bytes per bucket
+                if (buckets > (1 << 26)) {
+                    throw new IllegalArgumentException("Transposition table too large: " + megabytes + " MB");
+                }
+                this.slots = new long[(int) buckets * 4];
+                this.bucketMask = (int) buckets - 1;
+            }
+
+            // Packed entry data, 0 when the position is not in the table
+            public long probe(long key) {
+                probes.increment();
+                int base = ((int) key & bucketMask) << 2;
+                for (int i = base; i < base + 4; i += 2) {
+                    long data = (long) SLOTS.getOpaque(slots, i + 1);
+                    long check = (long) SLOTS.getOpaque(slots, i);
+                    if (data != 0 && (check ^ data) == key) {
+                        hits.increment();
+                        return data;
+                    }
+                }
+                if ((long) SLOTS.getOpaque(slots, base + 1) != 0L) {
+                    collisions.increment(); // Bucket in use by other positions
+                }
+                return 0L;
+            }
+
+            public void store(long key, int move, int score, int depth, int bound) {
+                int base = ((int) key & bucketMask) << 2;
+                long old = (long) SLOTS.getOpaque(slots, base + 1);
+                long oldKey = (long) SLOTS.getOpaque(slots, base) ^ old;
+                // Depth-preferred slot: take it if empty, same position, from an older search or shallower
+                int slot = old == 0 || oldKey == key || ageOf(old) != age || depthOf(old) <= depth ? base : base + 2;
+                long data = (move & 0xFFFFL) | ((score & 0xFFFFL) << 16) | ((long) (depth & 0xFF) << 32)
+                        | ((long) bound << 40) | ((long) (age & 0xFF) << 42);
+                SLOTS.setOpaque(slots, slot, key ^ data);
+                SLOTS.setOpaque(slots, slot + 1, data);
+                stores.increment();
+            }
+
+            // Call at the start of every search
+            public void newSearch() {
+                age = (age + 1) & 0xFF;
+            }
+
+            public void clear() {
+                Arrays.fill(slots, 0L);
+                probes.reset();
+                hits.reset();
+                collisions.reset();
+                stores.reset();
+            }
+
+            static int moveOf(long data) {
+                return (int) (data & 0xFFFF);
+            }
+
+            static int scoreOf(long data) {
+                return (short) (data >>> 16);
+            }
+
+            static int depthOf(long data) {
+                return (int) (data >>> 32) & 0xFF;
+            }
+
+            static int boundOf(long data) {
+                return (int) (data >>> 40) & 3;
+            }
+
+            private static int ageOf(long data) {
+                return (int) (data >>> 42) & 0xFF;
+            }
+
+            public int getEntryCount() {
+                return slots.length / 2;
+            }
+
+            public long getProbes() {
+                return probes.sum();
+            }
+
+            public long getHits() {
+                return hits.sum();
+            }
+
+            public long getCollisions() {
+                return collisions.sum();
+            }
+
+            public long getStores() {
+                return stores.sum();
+            }
+
+            // Used entries per thousand, sampled from the first 1000 buckets like UCI "hashfull"
+            public int getFillPermille() {
+                int sampled = Math.min(1000, slots.length / 4);
+                int used = 0;
+                for (int bucket = 0; bucket < sampled; bucket++) {
+                    int base = bucket << 2;
+                    used += ((long) SLOTS.getOpaque(slots, base + 1) != 0L ? 1 : 0)
+                            + ((long) SLOTS.getOpaque(slots, base + 3) != 0L ? 1 : 0);
+                }
+                return sampled == 0 ? 0 : used * 1000 / (sampled * 2);
+            }
+
+            public String getStatistics() {
+                long probeCount = getProbes();
+                return String.format("tt: %d MB, %d probes, %.1f%% hits, %d collisions, %d stores, %.1f%% full",
+                        (long) slots.length * 8 >> 20, probeCount, probeCount == 0 ? 0.0 : 100.0 * getHits() / probeCount,
+                        getCollisions(), getStores(), getFillPermille() / 10.0);
+            }
+        }
+
+        // Static evaluation: tapered material + piece-square tables, mobility and pawn structure.
+        // Material and piece-square scores are kept up to date by Board on every piece change, so
+        // evaluate() never scans the squares for them. Pawn structure only depends on the pawns and
+        // is cached per pawn Zobrist key. One Evaluator per search thread (the cache is not shared).
+        static final class Evaluator {
+            static final int[] PIECE_VALUES = {100, 320, 330, 500, 900, 0}; // indexed by PieceType
+            static final int[] PHASE_WEIGHTS = {0, 1, 1, 2, 4, 0}; // 24 with all pieces on the board
+            static final int MAX_PHASE = 24;
+
+            // Piece-square tables from White's side, listed from a8 to h1 like the Board squares
+            private static final int[] PAWN_TABLE = {
+                    0, 0, 0, 0, 0, 0, 0, 0,
+                    50, 50, 50, 50, 50, 50, 50, 50,
+                    10, 10, 20, 30, 30, 20, 10, 10,
+                    5, 5, 10, 25, 25, 10, 5, 5,
+                    0, 0, 0, 20, 20, 0, 0, 0,
+                    5, -5, -10, 0, 0, -10, -5, 5,
+                    5, 10, 10, -20, -20, 10, 10, 5,
+                    0, 0, 0, 0, 0, 0, 0, 0
+            };
+            private static final int[] KNIGHT_TABLE = {
+                    -50, -40, -30, -30, -30, -30, -40, -50,
+                    -40, -20, 0, 0, 0, 0, -20, -40,
+                    -30, 0, 10, 15, 15, 10, 0, -30,
+                    -30, 5, 15, 20, 20, 15, 5, -30,
+                    -30, 0, 15, 20, 20, 15, 0, -30,
+                    -30, 5, 10, 15, 15, 10, 5, -30,
+                    -40, -20, 0, 5, 5, 0, -20, -40,
+                    -50, -40, -30, -30, -30, -30, -40, -50
+            };
+            private static final int[] BISHOP_TABLE = {
+                    -20, -10, -10, -10, -10, -10, -10, -20,
+                    -10, 0, 0, 0, 0, 0, 0, -10,
+                    -10, 0, 5, 10, 10, 5, 0, -10,
+                    -10, 5, 5, 10, 10, 5, 5, -10,
+                    -10, 0, 10, 10, 10, 10, 0, -10,
+                    -10, 10, 10, 10, 10, 10, 10, -10,
+                    -10, 5, 0, 0, 0, 0, 5, -10,
+                    -20, -10, -10, -10, -10, -10, -10, -20
+            };
+            private static final int[] ROOK_TABLE = {
+                    0, 0, 0, 0, 0, 0, 0, 0,
+                    5, 10, 10, 10, 10, 10, 10, 5,
+                    -5, 0, 0, 0, 0, 0, 0, -5,
+                    -5, 0, 0, 0, 0, 0, 0, -5,
+                    -5, 0, 0, 0, 0, 0, 0, -5,
+                    -5, 0, 0, 0, 0, 0, 0, -5,
+                    -5, 0, 0, 0, 0, 0, 0, -5,
+                    0, 0, 0, 5, 5, 0, 0, 0
+            };
+            private static final int[] QUEEN_TABLE = {
+                    -20, -10, -10, -5, -5, -10, -10, -20,
+                    -10, 0, 0, 0, 0, 0, 0, -10,
+                    -10, 0, 5, 5, 5, 5, 0, -10,
+                    -5, 0, 5, 5, 5, 5, 0, -5,
+                    0, 0, 5, 5, 5, 5, 0, -5,
+                    -10, 5, 5, 5, 5, 5, 0, -10,
+                    -10, 0, 5, 0, 0, 0, 0, -10,
+                    -20, -10, -10, -5, -5, -10, -10, -20
+            };
+            private static final int[] KING_MIDGAME_TABLE = {
+                    -30, -40, -40, -50, -50, -40, -40, -30,
+                    -30, -40, -40, -50, -50, -40, -40, -30,
+                    -30, -40, -40, -50, -50, -40, -40, -30,
+                    -30, -40, -40, -50, -50, -40, -40, -30,
+                    -20, -30, -30, -40, -40, -30, -30, -20,
+                    -10, -20, -20, -20, -20, -20, -20, -10,
+                    20, 20, 0, 0, 0, 0, 20, 20,
+                    20, 30, 10, 0, 0, 10, 30, 20
+            };
+            private static final int[] KING_ENDGAME_TABLE = {
+                    -50, -40, -30, -20, -20, -30, -40, -50,
+                    -30, -20, -10, 0, 0, -10, -20, -30,
+                    -30, -10, 20, 30, 30, 20, -10, -30,
+                    -30, -10, 30, 40, 40, 30, -10, -30,
+                    -30, -10, 30, 40, 40, 30, -10, -30,
+                    -30, -10, 20, 30, 30, 20, -10, -30,
+                    -30, -30, 0, 0, 0, 0, -30, -30,
+                    -50, -30, -30, -30, -30, -30, -30, -50
+            };
+
+            // Material + table value per [color][piece type][square], signed (+ White, - Black)
+            static final int[][][] MIDGAME = new int[2][6][64];
+            static final int[][][] ENDGAME = new int[2][6][64];
+
+            private static final int[] MOBILITY_WEIGHTS = {0, 4, 5, 2, 1, 0}; // per reachable square
+            private static final int DOUBLED_PAWN = -10;
+            private static final int ISOLATED_PAWN = -15;
+            private static final int[] PASSED_PAWN = {0, 5, 10, 20, 35, 60, 100, 0}; // by steps from own back rank
+            private static final long[] FILE_MASKS = new long[8];
+            private static final long[] ADJACENT_FILES = new long[8];
+            private static final long[][] PASSED_MASKS = new long[2][64]; // enemy pawns that can stop this pawn
+
+            static {
+                int[][] midgame = {PAWN_TABLE, KNIGHT_TABLE, BISHOP_TABLE, ROOK_TABLE, QUEEN_TABLE, KING_MIDGAME_TABLE};
+                int[][] endgame = {PAWN_TABLE, KNIGHT_TABLE, BISHOP_TABLE, ROOK_TABLE, QUEEN_TABLE, KING_ENDGAME_TABLE};
+                for (int type = 0; type < 6; type++) {
+                    for (int square = 0; square < 64; square++) {
+                        int mirrored = square ^ 56; // Black reads the table upside down
+                        MIDGAME[0][type][square] = PIECE_VALUES[type] + midgame[type][square];
+                        MIDGAME[1][type][square] = -(PIECE_VALUES[type] + midgame[type][mirrored]);
+                        ENDGAME[0][type][square] = PIECE_VALUES[type] + endgame[type][square];
+                        ENDGAME[1][type][square] = -(PIECE_VALUES[type] + endgame[type][mirrored]);
+                    }
+                }
+                for (int col = 0; col < 8; col++) {
+                    FILE_MASKS[col] = 0x0101010101010101L << col;
+                }
+                for (int col = 0; col < 8; col++) {
+                    ADJACENT_FILES[col] = (col > 0 ? FILE_MASKS[col - 1] : 0L) | (col < 7 ? FILE_MASKS[col + 1] : 0L);
+                }
+                for (int square = 0; square < 64; square++) {
+                    int row = square >> 3;
+                    long files = FILE_MASKS[square & 7] | ADJACENT_FILES[square & 7];
+                    long above = row == 0 ? 0L : -1L >>> (64 - row * 8); // rows 0 .. row-1
+                    long below = row == 7 ? 0L : -1L << ((row + 1) * 8); // rows row+1 .. 7
+                    PASSED_MASKS[0][square] = files & above; // White runs towards row 0
+                    PASSED_MASKS[1][square] = files & below;
+                }
+            }
+
+            private static final int PAWN_CACHE_SIZE = 1 << 14;
+            private final long[] pawnKeys = new long[PAWN_CACHE_SIZE];
+            private final int[] pawnScores = new int[PAWN_CACHE_SIZE];
+            private final boolean[] pawnValid = new boolean[PAWN_CACHE_SIZE];
+
+            // Score in centipawns from the side to move's point of view
+            public int evaluate(Board board) {
+                int phase = Math.min(board.getGamePhase(), MAX_PHASE);
+                int score = (board.getMidgameScore() * phase + board.getEndgameScore() * (MAX_PHASE - phase)) / MAX_PHASE;
+                score += mobility(board, Color.WHITE) - mobility(board, Color.BLACK);
+                score += pawnStructure(board);
+                return board.getSideToMove() == Color.WHITE ? score : -score;
+            }
+
+            private static int mobility(Board board, Color color) {
+                long own = board.getColorOccupancy(color);
+                long occupied = board.getOccupied();
+                int score = 0;
+                for (long bits = board.getPieces(color, PieceType.KNIGHT); bits != 0; bits &= bits - 1) {
+                    score += MOBILITY_WEIGHTS[1] * Long.bitCount(AttackTables.KNIGHT_ATTACKS[Long.numberOfTrailingZeros(bits)] & ~own);
+                }
+                for (long bits = board.getPieces(color, PieceType.BISHOP); bits != 0; bits &= bits - 1) {
+                    score += MOBILITY_WEIGHTS[2] * Long.bitCount(AttackTables.bishopAttacks(Long.numberOfTrailingZeros(bits), occupied) & ~own);
+                }
+                for (long bits = board.getPieces(color, PieceType.ROOK); bits != 0; bits &= bits - 1) {
+                    score += MOBILITY_WEIGHTS[3] * Long.bitCount(AttackTables.rookAttacks(Long.numberOfTrailingZeros(bits), occupied) & ~own);
+                }
+                for (long bits = board.getPieces(color, PieceType.QUEEN); bits != 0; bits &= bits - 1) {
+                    score += MOBILITY_WEIGHTS[4] * Long.bitCount(AttackTables.queenAttacks(Long.numberOfTrailingZeros(bits), occupied) & ~own);
+                }
+                return score;
+            }
+
+            // White minus Black pawn structure, looked up in the pawn cache first
+            private int pawnStructure(Board board) {
+                long key = board.getPawnKey();
+                int index = (int) key & (PAWN_CACHE_SIZE - 1);
+                if (pawnValid[index] && pawnKeys[index] == key) {
+                    return pawnScores[index];
+                }
+                long white = board.getPieces(Color.WHITE, PieceType.PAWN);
+                long black = board.getPieces(Color.BLACK, PieceType.PAWN);
+                int score = pawnStructure(white, black, 0) - pawnStructure(black, white, 1);
+                pawnKeys[index] = key;
+                pawnScores[index] = score;
+                pawnValid[index] = true;
+                return score;
+            }
+
+            private static int pawnStructure(long own, long enemy, int color) {
+                int score = 0;
+                for (int col = 0; col < 8; col++) {
+                    int count = Long.bitCount(own & FILE_MASKS[col]);
+                    if (count > 1) {
+                        score += DOUBLED_PAWN * (count - 1);
+                    }
+                    if (count > 0 && (own & ADJACENT_FILES[col]) == 0) {
+                        score += ISOLATED_PAWN * count;
+                    }
+                }
+                for (long bits = own; bits != 0; bits &= bits - 1) {
+                    int square = Long.numberOfTrailingZeros(bits);
+                    if ((enemy & PASSED_MASKS[color][square]) == 0) {
+                        int advanced = color == 0 ? 7 - (square >> 3) : square >> 3;
+                        score += PASSED_PAWN[advanced];
+                    }
+                }
+                return score;
+            }
+        }
+
+        // Outcome of one SearchEngine.search call
+        static final class SearchResult {
+            final int bestMove; // 0 if the side to move has no legal move
+            final int score; // centipawns from the side to move's point of view
+            final int depth; // deepest fully completed iteration
+            final long nodes;
+            final long elapsedMillis;
+            final String source; // "book" or "tablebase" when the move was looked up, null when searched
+
+            SearchResult(int bestMove, int score, int depth, long nodes, long elapsedMillis) {
+                this(bestMove, score, depth, nodes, elapsedMillis, null);
+            }
+
+            SearchResult(int bestMove, int score, int depth, long nodes, long elapsedMillis, String source) {
+                this.bestMove = bestMove;
+                this.score = score;
+                this.depth = depth;
+                this.nodes = nodes;
+                this.elapsedMillis = elapsedMillis;
+                this.source = source;
+            }
+
+            public long getNodesPerSecond() {
+                return nodes * 1000 / Math.max(1, elapsedMillis);
+            }
+
+            @Override
+            public String toString() {
+                if (source != null) {
+                    return "bestmove " + Move.toString(bestMove) + " score " + score + " (" + source + ")";
+                }
+                return String.format("bestmove %s score %d depth %d nodes %d nps %d time %dms",
+                        bestMove == 0 ? "none" : Move.toString(bestMove), score, depth, nodes, getNodesPerSecond(), elapsedMillis);
+            }
+        }
+
+        // Negamax alpha-beta search with iterative deepening, quiescence search and a hard time budget.
+        // Moves are ordered by transposition table move, MVV-LVA captures, killer moves and history.
+        // One engine per thread; the transposition table may be shared.
+        static final class SearchEngine {
+            static final int INFINITY = 32000;
+            static final int MATE = 30000; // mate in n plies scores MATE - n
+            static final int MAX_PLY = 128;
+            static final long NO_TIME_LIMIT = 24L * 60 * 60 * 1000; // one day, for fixed-depth searches
+            private static final int[] PIECE_VALUES = Evaluator.PIECE_VALUES;
+            private static final int TIME_CHECK_INTERVAL = 1024; // nodes between clock reads
+
+            private final TranspositionTable table;
+            private final Evaluator evaluator = new Evaluator();
+            private final int[][] moves = new int[MAX_PLY][MoveGenerator.MAX_MOVES];
+            private final int[][] moveScores = new int[MAX_PLY][MoveGenerator.MAX_MOVES];
+            private final int[][] killers = new int[MAX_PLY][2];
+            private final int[][][] history = new int[2][64][64]; // [color][from][to]
+
+            private Board board;
+            private int rootBestMove;
+            private long nodes;
+            private long deadline;
+            private boolean stopped;
+            private volatile boolean stopRequested; // set from another thread, e.g. by ParallelSearch
+            private OpeningBook book; // consulted before searching, if set
+            private Tablebases tablebases; // likewise
+            private final SplittableRandom bookRandom = new SplittableRandom();
+
+            public SearchEngine(TranspositionTable table) {
+                this.table = table;
+            }
+
+            // Search the position for at most `timeLimitMillis` and return the best move found
+            public SearchResult search(Board board, long timeLimitMillis) {
+                return search(board, timeLimitMillis, MAX_PLY - 1);
+            }
+
+            public SearchResult search(Board board, long timeLimitMillis, int maxDepth) {
+                if (!MoveMetrics.enabled) {
+                    return searchPosition(board, timeLimitMillis, maxDepth);
+                }
+                long start = System.nanoTime();
+                SearchResult result = searchPosition(board, timeLimitMillis, maxDepth);
+                MoveMetrics.METRICS.recordSearch(result, System.nanoTime() - start);
+                return result;
+            }
+
+            private SearchResult searchPosition(Board board, long timeLimitMillis, int maxDepth) {
+                SearchResult bookResult = probeBook(board);
+                if (bookResult != null) {
+                    return bookResult;
+                }
+                SearchResult tablebaseResult = probeTablebases(board);
+                if (tablebaseResult != null) {
+                    return tablebaseResult;
+                }
+                stopRequested = false;
+                table.newSearch();
+                return runSearch(board, timeLimitMillis, maxDepth, 1);
+            }
+
+            public void setBook(OpeningBook book) {
+                this.book = book;
+            }
+
+            // A book move as a depth 0 result, or null when there is no book or the position is not in it
+            SearchResult probeBook(Board board) {
+                if (book == null) {
+                    return null;
+                }
+                int move = book.pickMove(board, bookRandom, moves[0]);
+                return move == 0 ? null : new SearchResult(move, 0, 0, 0, 0, "book");
+            }
+
+            public void setTablebases(Tablebases tablebases) {
+                this.tablebases = tablebases;
+            }
+
+            // The tablebase move with its exact score, or null when no table covers the position
+            SearchResult probeTablebases(Board board) {
+                if (tablebases == null) {
+                    return null;
+                }
+                int value = tablebases.probe(board);
+                int move = value == 0 ? 0 : tablebases.bestMove(board, moves[0]);
+                if (move == 0) {
+                    return null;
+                }
+                int wdl = value & 3;
+                int score = wdl == Tablebase.WIN ? MATE - (value >>> 2) : wdl == Tablebase.LOSS ? -MATE + (value >>> 2) : 0;
+                return new SearchResult(move, score, 0, 0, 0, "tablebase");
+            }
+
+            // Ask a running search to stop at its next clock check; the last full iteration is returned
+            public void stop() {
+                stopRequested = true;
+            }
+
+            // Iterative deepening from `firstDepth`; callers reset stopRequested and age the table
+            SearchResult runSearch(Board board, long timeLimitMillis, int maxDepth, int firstDepth) {
+                long start = System.nanoTime();
+                this.board = board;
+                this.deadline = start + timeLimitMillis * 1_000_000L;
+                this.nodes = 0;
+                this.stopped = false;
+                for (int[] pair : killers) {
+                    Arrays.fill(pair, 0);
+                }
+                for (int[][] byFrom : history) {
+                    for (int[] byTo : byFrom) {
+                        Arrays.fill(byTo, 0);
+                    }
+                }
+
+                int bestMove = 0;
+                int bestScore = 0;
+                int completedDepth = 0;
+                for (int depth = firstDepth; depth <= maxDepth; depth++) {
+                    int score = negamax(depth, -INFINITY, INFINITY, 0);
+                    if (stopped) {
+                        break; // Keep the result of the last full iteration
+                    }
+                    bestMove = rootBestMove;
+                    bestScore = score;
+                    completedDepth = depth;
+                    if (Math.abs(score) >= MATE - MAX_PLY) {
+                        break; // Forced mate found, searching deeper cannot change it
+                    }
+                }
+                if (bestMove == 0) {
+                    // Out of time before depth 1 finished: fall back to any legal move
+                    int count = MoveGenerator.generateLegalMoves(board, moves[0]);
+                    bestMove = count > 0 ? moves[0][0] : 0;
+                }
+                long elapsed = (System.nanoTime() - start) / 1_000_000L;
+                return new SearchResult(bestMove, bestScore, completedDepth, nodes, elapsed);
+            }
+
+            private int negamax(int depth, int alpha, int beta, int ply) {
+                if (ply > 0 && (board.getHalfmoveClock() >= 100 || board.isRepetition())) {
+                    return 0;
+                }
+                boolean inCheck = board.isInCheck(board.getSideToMove());
+                if (inCheck) {
+                    depth++; // Check extension
+                }
+                if (depth <= 0 || ply >= MAX_PLY - 1) {
+                    return quiescence(alpha, beta, ply);
+                }
+                if (++nodes % TIME_CHECK_INTERVAL == 0) {
+                    checkTime();
+                }
+                if (stopped) {
+                    return 0;
+                }
+
+                long key = board.getZobristKey();
+                long entry = table.probe(key);
+                int ttMove = 0;
+                if (entry != 0) {
+                    ttMove = TranspositionTable.moveOf(entry);
+                    if (ply > 0 && TranspositionTable.depthOf(entry) >= depth) {
+                        int score = fromTable(TranspositionTable.scoreOf(entry), ply);
+                        int bound = TranspositionTable.boundOf(entry);
+                        if (bound == TranspositionTable.BOUND_EXACT
+                                || (bound == TranspositionTable.BOUND_LOWER && score >= beta)
+                                || (bound == TranspositionTable.BOUND_UPPER && score <= alpha)) {
+                            return score;
+                        }
+                    }
+                }
+
+                int[] list = moves[ply];
+                int count = MoveGenerator.generateLegalMoves(board, list);
+                if (count == 0) {
+                    return inCheck ? -MATE + ply : 0; // Checkmate or stalemate
+                }
+                scoreMoves(list, moveScores[ply], count, ttMove, ply);
+
+                int originalAlpha = alpha;
+                int bestScore = -INFINITY;
+                int bestMove = 0;
+                for (int i = 0; i < count; i++) {
+                    int move = pickNext(list, moveScores[ply], i, count);
+                    board.makeMove(move);
+                    int score = -negamax(depth - 1, -beta, -alpha, ply + 1);
+                    board.unmakeMove();
+                    if (stopped) {
+                        return 0;
+                    }
+                    if (score > bestScore) {
+                        bestScore = score;
+                        bestMove = move;
+                        if (score > alpha) {
+                            alpha = score;
+                            if (alpha >= beta) {
+                                if (!Move.isCapture(move)) {
+                                    updateKillersAndHistory(move, depth, ply);
+                                }
+                                break;
+                            }
+                        }
+                    }
+                }
+
+                if (ply == 0) {
+                    rootBestMove = bestMove;
+                }
+                int bound = bestScore >= beta ? TranspositionTable.BOUND_LOWER
+                        : bestScore > originalAlpha ? TranspositionTable.BOUND_EXACT : TranspositionTable.BOUND_UPPER;
+                table.store(key, bestMove, toTable(bestScore, ply), depth, bound);
+                return bestScore;
+            }
+
+            // Resolve captures and promotions so the static evaluation is not taken mid-exchange
+            private int quiescence(int alpha, int beta, int ply) {
+                if (++nodes % TIME_CHECK_INTERVAL == 0) {
+                    checkTime();
+                }
+                if (stopped) {
+                    return 0;
+                }
+                int standPat = evaluator.evaluate(board);
+                if (standPat >= beta || ply >= MAX_PLY - 1) {
+                    return standPat;
+                }
+                if (standPat > alpha) {
+                    alpha = standPat;
+                }
+
+                int[] list = moves[ply];
+                int[] scores = moveScores[ply];
+                int count = MoveGenerator.generateLegalMoves(board, list);
+                int tactical = 0;
+                for (int i = 0; i < count; i++) {
+                    if (Move.isCapture(list[i]) || Move.isPromotion(list[i])) {
+                        list[tactical++] = list[i];
+                    }
+                }
+                scoreMoves(list, scores, tactical, 0, ply);
+                for (int i = 0; i < tactical; i++) {
+                    int move = pickNext(list, scores, i, tactical);
+                    board.makeMove(move);
+                    int score = -quiescence(-beta, -alpha, ply + 1);
+                    board.unmakeMove();
+                    if (stopped) {
+                        return 0;
+                    }
+                    if (score > alpha) {
+                        alpha = score;
+                        if (alpha >= beta) {
+                            break;
+                        }
+                    }
+                }
+                return alpha;
+            }
+
+            private void checkTime() {
+                if (stopRequested || System.nanoTime() > deadline) {
+                    stopped = true;
+                }
+            }
+
+            private void scoreMoves(int[] list, int[] scores, int count, int ttMove, int ply) {
+                int color = board.getSideToMove().ordinal();
+                for (int i = 0; i < count; i++) {
+                    int move = list[i];
+                    if (move == ttMove) {
+                        scores[i] = 1_000_000;
+                    } else if (Move.isCapture(move) || Move.isPromotion(move)) {
+                        // MVV-LVA: most valuable victim first, then least valuable attacker
+                        Piece victim = board.getPiece(Move.to(move));
+                        int victimValue = victim != null ? PIECE_VALUES[victim.typeIndex] : PIECE_VALUES[0];
+                        int attackerValue = PIECE_VALUES[board.getPiece(Move.from(move)).typeIndex];
+                        scores[i] = 500_000 + victimValue * 10 - attackerValue / 10
+                                + (Move.isPromotion(move) ? PIECE_VALUES[Move.promotionType(move)] : 0);
+                    } else if (move == killers[ply][0]) {
+                        scores[i] = 400_000;
+                    } else if (move == killers[ply][1]) {
+                        scores[i] = 300_000;
+                    } else {
+                        scores[i] = history[color][Move.from(move)][Move.to(move)];
+                    }
+                }
+            }
+
+            // Selection sort step: swap the best remaining move into slot `index`
+            private static int pickNext(int[] list, int[] scores, int index, int count) {
+                int best = index;
+                for (int i = index + 1; i < count; i++) {
+                    if (scores[i] > scores[best]) {
+                        best = i;
+                    }
+                }
+                int move = list[best];
+                list[best] = list[index];
+                list[index] = move;
+                int score = scores[best];
+                scores[best] = scores[index];
+                scores[index] = score;
+                return move;
+            }
+
+            private void updateKillersAndHistory(int move, int depth, int ply) {
+                if (killers[ply][0] != move) {
+                    killers[ply][1] = killers[ply][0];
+                    killers[ply][0] = move;
+                }
+                int[] fromTo = history[board.getSideToMove().ordinal()][Move.from(move)];
+                fromTo[Move.to(move)] = Math.min(fromTo[Move.to(move)] + depth * depth, 200_000);
+            }
+
+            // Mate scores are stored relative to the node so they stay valid at other plies
+            private static int toTable(int score, int ply) {
+                return score >= MATE - MAX_PLY ? score + ply : score <= -MATE + MAX_PLY ? score - ply : score;
+            }
+
+            private static int fromTable(int score, int ply) {
+                return score >= MATE - MAX_PLY ? score - ply : score <= -MATE + MAX_PLY ? score + ply : score;
+            }
+        }
+
+        // Lazy SMP: several SearchEngines search the same position on their own board copies and
+        // share one transposition table, so each thread profits from what the others already found.
+        // Helpers start at alternating depths to spread out; the first engine's result is returned.
+        static final class ParallelSearch implements AutoCloseable {
+            // Positions used by the scaling benchmark, as move sequences from the starting position
+            static final String[] BENCHMARK_OPENINGS = {
+                    "",
+                    "e2e4 e7e5 g1f3 b8c6 f1b5 a7a6 b5a4 g8f6 e1g1",
+                    "d2d4 d7d5 c2c4 e7e6 b1c3 g8f6 c1g5 f8e7",
+                    "e2e4 c7c5 g1f3 d7d6 d2d4 c5d4 f3d4 g8f6 b1c3 a7a6",
+                    "c2c4 e7e5 b1c3 g8f6 g1f3 b8c6 g2g3 d7d5 c4d5 f6d5",
+                    "e2e4 e7e6 d2d4 d7d5 b1c3 f8b4 e4e5 c7c5 a2a3 b4c3 b2c3"
+            };
+
+            private final TranspositionTable table;
+            private final SearchEngine[] engines;
+            private final ExecutorService helpers;
+
+            public ParallelSearch(TranspositionTable table, int maxThreads) {
+                this.table = table;
+                this.engines = new SearchEngine[maxThreads];
+                for (int i = 0; i < maxThreads; i++) {
+                    engines[i] = new SearchEngine(table);
+                }
+                // Platform threads: the work is CPU-bound and never blocks
+                this.helpers = Executors.newFixedThreadPool(Math.max(1, maxThreads - 1));
+            }
+
+            public SearchResult search(Board board, long timeLimitMillis, int threads) {
+                return search(board, timeLimitMillis, SearchEngine.MAX_PLY - 1, threads);
+            }
+
+            // Search with `threads` engines (at most the count given to the constructor)
+            public SearchResult search(Board board, long timeLimitMillis, int maxDepth, int threads) {
+                if (!MoveMetrics.enabled) {
+                    return searchPosition(board, timeLimitMillis, maxDepth, threads);
+                }
+                long start = System.nanoTime();
+                SearchResult result = searchPosition(board, timeLimitMillis, maxDepth, threads);
+                MoveMetrics.METRICS.recordSearch(result, System.nanoTime() - start);
+                return result;
+            }
+
+            private SearchResult searchPosition(Board board, long timeLimitMillis, int maxDepth, int threads) {
+                SearchResult bookResult = engines[0].probeBook(board);
+                if (bookResult != null) {
+                    return bookResult;
+                }
+                SearchResult tablebaseResult = engines[0].probeTablebases(board);
+                if (tablebaseResult != null) {
+                    return tablebaseResult;
+                }
+                int count = Math.max(1, Math.min(threads, engines.length));
+                table.newSearch();
+                List<Future<SearchResult>> running = new ArrayList<>(count - 1);
+                for (int i = 1; i < count; i++) {
+                    SearchEngine helper = engines[i];
+                    Board copy = board.copy();
+                    int firstDepth = 1 + (i & 1);
+                    helper.stopRequested = false;
+                    running.add(helpers.submit(() -> helper.runSearch(copy, timeLimitMillis, SearchEngine.MAX_PLY - 1, firstDepth)));
+                }
+                engines[0].stopRequested = false;
+                SearchResult main = engines[0].runSearch(board, timeLimitMillis, maxDepth, 1);
+
+                long nodes = main.nodes;
+                for (int i = 1; i < count; i++) {
+                    engines[i].stop();
+                }
+                for (Future<SearchResult> helper : running) {
+                    try {
+                        nodes += helper.get().nodes;
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (ExecutionException e) {
+                        throw new IllegalStateException("Search thread failed", e.getCause());
+                    }
+                }
+                return new SearchResult(main.bestMove, main.score, main.depth, nodes, main.elapsedMillis);
+            }
+
+            @Override
+            public void close() {
+                helpers.shutdownNow();
+            }
+
+            // Time-to-depth and nodes-per-second for 1, 2, 4 ... maxThreads threads on BENCHMARK_OPENINGS
+            static void runScalingBenchmark(int maxThreads, int depth) {
+                Board board = new Board();
+                TranspositionTable table = new TranspositionTable(TranspositionTable.DEFAULT_SIZE_MB);
+                try (ParallelSearch search = new ParallelSearch(table, maxThreads)) {
+                    long baseMillis = 0;
+                    long baseNps = 0;
+                    for (int threads = 1; threads <= maxThreads; threads = threads == maxThreads ? threads + 1 : Math.min(threads * 2, maxThreads)) {
+                        long millis = 0;
+                        long nodes = 0;
+                        for (String opening : BENCHMARK_OPENINGS) {
+                            board.clear();
+                            GameInitializer.initializePieces(board);
+                            for (String move : opening.split(" ")) {
+                                if (!move.isEmpty()) {
+                                    board.makeMove(MoveGenerator.parseMove(board, move));
+                                }
+                            }
+                            table.clear();
+                            SearchResult result = search.search(board, SearchEngine.NO_TIME_LIMIT, depth, threads);
+                            millis += result.elapsedMillis;
+                            nodes += result.nodes;
+                        }
+                        long nps = nodes * 1000 / Math.max(1, millis);
+                        if (threads == 1) {
+                            baseMillis = millis;
+                            baseNps = nps;
+                        }
+                        System.out.printf("threads %2d: depth %d in %6d ms, %10d nodes/s, time-to-depth speedup %.2f, nps scaling %.2f%n",
+                                threads, depth, millis, nps, (double) baseMillis / Math.max(1, millis), (double) nps / Math.max(1, baseNps));
+                    }
+                }
+            }
+        }
+
+        // Benchmarks for the hot paths, run with "Main bench". No JMH here, so each benchmark is
+        // warmed up, then run in timed batches; results are consumed through a volatile sink so the
+        // JIT cannot drop the work. Reports throughput, bytes allocated per operation (from the
+        // thread allocation counter, the same source as JMH's gc profiler) and batch latency
+        // percentiles divided down to one operation.
+        static final class Benchmarks {
+            private static final long WARMUP_NANOS = 1_000_000_000L;
+            private static final long MEASURE_NANOS = 2_000_000_000L;
+            private static final int MAX_SAMPLES = 1 << 20;
+
+            static volatile long sink;
+
+            private Benchmarks() {}
+
+            interface Operation {
+                long run(); // result is folded into the sink
+            }
+
+            static void runAll() {
+                System.out.printf("%-36s %14s %12s %10s %10s %10s%n", "benchmark", "ops/s", "bytes/op", "p50 ns", "p99 ns", "p999 ns");
+
+                // Move validation for every piece type, against all 64 targets from a middlegame position
+                Board board = new Board();
+                GameInitializer.initializePieces(board);
+                for (String move : "e2e4 e7e5 g1f3 b8c6 f1c4 f8c5 d2d3 d7d6".split(" ")) {
+                    board.makeMove(MoveGenerator.parseMove(board, move));
+                }
+                int[] squares = {Board.squareIndex(7, 4), Board.squareIndex(7, 3), Board.squareIndex(4, 2),
+                        Board.squareIndex(7, 7), Board.squareIndex(5, 5), Board.squareIndex(6, 0)};
+                for (int square : squares) {
+                    Piece piece = board.getPiece(square);
+                    measure("isValidMove " + piece.getType(), 64, () -> {
+                        long valid = 0;
+                        for (int to = 0; to < 64; to++) {
+                            valid += piece.isValidMove(Position.of(to), board) ? 1 : 0;
+                        }
+                        return valid;
+                    });
+                }
+
+                // Board.movePiece, taken back each time so the position stays the same
+                Piece knight = board.getPiece(Board.squareIndex(5, 5));
+                measure("Board.movePiece", 1, () -> {
+                    MoveStatus status = board.movePiece(knight, Board.squareIndex(3, 6));
+                    board.unmakeMove();
+                    return status.ordinal();
+                });
+
+                // Game.makeMove and MoveProcessor.processMove: knights out and back, four moves per operation
+                Game game = new Game(new Player("White", Color.WHITE), new Player("Black", Color.BLACK));
+                GameInitializer.initializePieces(game.getBoard());
+                Board gameBoard = game.getBoard();
+                measure("Game.makeMove", 4, () -> {
+                    long result = game.makeMove(gameBoard.getPiece(Board.squareIndex(7, 6)), Position.of(5, 5)).ordinal();
+                    result += game.makeMove(gameBoard.getPiece(Board.squareIndex(0, 6)), Position.of(2, 5)).ordinal();
+                    result += game.makeMove(gameBoard.getPiece(Board.squareIndex(5, 5)), Position.of(7, 6)).ordinal();
+                    result += game.makeMove(gameBoard.getPiece(Board.squareIndex(2, 5)), Position.of(0, 6)).ordinal();
+                    for (int i = 0; i < 4; i++) {
+                        gameBoard.unmakeMove();
+                    }
+                    return result;
+                });
+                MoveProcessor processor = new MoveProcessor(gameBoard, game);
+                measure("MoveProcessor.processMove", 4, () -> {
+                    long result = processor.processMove("g1 f3").ordinal();
+                    result += processor.processMove("g8 f6").ordinal();
+                    result += processor.processMove("f3 g1").ordinal();
+                    result += processor.processMove("f6 g8").ordinal();
+                    for (int i = 0; i < 4; i++) {
+                        gameBoard.unmakeMove();
+                    }
+                    return result;
+                });
+
+                // The same two with metrics on, to show what the instrumentation costs; off it is a volatile read
+                boolean metricsWereOn = MoveMetrics.enabled;
+                MoveMetrics.enabled = true;
+                measure("Game.makeMove +metrics", 4, () -> {
+                    long result = game.makeMove(gameBoard.getPiece(Board.squareIndex(7, 6)), Position.of(5, 5)).ordinal();
+                    result += game.makeMove(gameBoard.getPiece(Board.squareIndex(0, 6)), Position.of(2, 5)).ordinal();
+                    result += game.makeMove(gameBoard.getPiece(Board.squareIndex(5, 5)), Position.of(7, 6)).ordinal();
+                    result += game.makeMove(gameBoard.getPiece(Board.squareIndex(2, 5)), Position.of(0, 6)).ordinal();
+                    for (int i = 0; i < 4; i++) {
+                        gameBoard.unmakeMove();
+                    }
+                    return result;
+                });
+                measure("MoveProcessor.processMove +metrics", 4, () -> {
+                    long result = processor.processMove("g1 f3").ordinal();
+                    result += processor.processMove("g8 f6").ordinal();
+                    result += processor.processMove("f3 g1").ordinal();
+                    result += processor.processMove("f6 g8").ordinal();
+                    for (int i = 0; i < 4; i++) {
+                        gameBoard.unmakeMove();
+                    }
+                    return result;
+                });
+                MoveMetrics.enabled = metricsWereOn;
+
+                // Batch validation on one thread, 512 pairs per call
+                ByteBuffer positions = ByteBuffer.allocateDirect(512 * PackedPosition.SIZE);
+                int[] batchMoves = new int[512];
+                byte[] statuses = new byte[512];
+                BatchValidator.fillSampleBatch(positions, batchMoves, 42);
+                measure("BatchValidator.validateRange", 512, () -> {
+                    BatchValidator.validateRange(positions, batchMoves, statuses, 0, batchMoves.length);
+                    return statuses[0];
+                });
+
+                // Move generation on the starting position
+                Board start = new Board();
+                GameInitializer.initializePieces(start);
+                MoveGenerator generator = new MoveGenerator(start);
+                for (int depth = 3; depth <= 4; depth++) {
+                    int fixedDepth = depth;
+                    measure("perft(" + depth + ")", 1, () -> generator.perft(fixedDepth));
+                }
+            }
+
+            // Warm up, then time batches of calls; `opsPerCall` scales the numbers down to one operation
+            static void measure(String name, int opsPerCall, Operation operation) {
+                long warmupEnd = System.nanoTime() + WARMUP_NANOS;
+                while (System.nanoTime() < warmupEnd) {
+                    sink += operation.run();
+                }
+
+                // Batch so that timer overhead stays small next to the measured work
+                int batch = 1;
+                long probeStart = System.nanoTime();
+                sink += operation.run();
+                long single = Math.max(1, System.nanoTime() - probeStart);
+                if (single < 10_000) {
+                    batch = (int) Math.min(1000, 10_000 / single);
+                }
+
+                long[] samples = new long[MAX_SAMPLES];
+                int sampleCount = 0;
+                long calls = 0;
+                long allocatedBefore = allocatedBytes();
+                long start = System.nanoTime();
+                long end = start + MEASURE_NANOS;
+                long now = start;
+                while (now < end && sampleCount < MAX_SAMPLES) {
+                    for (int i = 0; i < batch; i++) {
+                        sink += operation.run();
+                    }
+                    long after = System.nanoTime();
+                    samples[sampleCount++] = after - now;
+                    now = after;
+                    calls += batch;
+                }
+                long allocated = allocatedBytes() - allocatedBefore;
+                long elapsed = now - start;
+
+                Arrays.sort(samples, 0, sampleCount);
+                double perOp = (double) batch * opsPerCall;
+                long ops = calls * opsPerCall;
+                System.out.printf("%-36s %14.0f %12s %10.0f %10.0f %10.0f%n", name,
+                        ops * 1e9 / elapsed,
+                        allocated < 0 ? "n/a" : String.format("%.1f", (double) allocated / ops),
+                        samples[(int) (sampleCount * 0.50)] / perOp,
+                        samples[Math.min(sampleCount - 1, (int) (sampleCount * 0.99))] / perOp,
+                        samples[Math.min(sampleCount - 1, (int) (sampleCount * 0.999))] / perOp);
+            }
+
+            // Bytes allocated so far by this thread, or a negative value if the JVM cannot tell
+            private static long allocatedBytes() {
+                java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+                if (threads instanceof com.sun.management.ThreadMXBean) {
+                    return ((com.sun.management.ThreadMXBean) threads).getCurrentThreadAllocatedBytes();
+                }
+                return -1;
+            }
+        }
+
+        // Picks the move to play; match games pit two of these against each other. An instance is only used by
+        // one thread, so it may keep state such as a transposition table between moves.
+        interface MoveStrategy {
+            // A legal move in a position that has at least one; `buffer` is scratch space for move generation
+            int selectMove(Board board, int[] buffer);
+
+            // Factory for "random", "greedy" (best evaluation after one move), "depth:<plies>" or "time:<millis>"
+            static Supplier<MoveStrategy> parse(String spec) {
+                int colon = spec.indexOf(':');
+                String kind = colon < 0 ? spec : spec.substring(0, colon);
+                switch (kind) {
+                    case "random": return RandomStrategy::new;
+                    case "greedy": return GreedyStrategy::new;
+                    case "depth": {
+                        int depth = Integer.parseInt(spec.substring(colon + 1));
+                        return () -> new SearchStrategy(SearchEngine.NO_TIME_LIMIT, depth);
+                    }
+                    case "time": {
+                        long millis = Long.parseLong(spec.substring(colon + 1));
+                        return () -> new SearchStrategy(millis, SearchEngine.MAX_PLY - 1);
+                    }
+                    default: throw new IllegalArgumentException("Unknown strategy: " + spec);
+                }
+            }
+        }
+
+        static final class RandomStrategy implements MoveStrategy {
+            private final SplittableRandom random = new SplittableRandom();
+
+            @Override
+            public int selectMove(Board board, int[] buffer) {
+                return buffer[random.nextInt(MoveGenerator.generateLegalMoves(board, buffer))];
+            }
+        }
+
+        // Plays the move after which the static evaluation is best
+        static final class GreedyStrategy implements MoveStrategy {
+            private final Evaluator evaluator = new Evaluator();
+
+            @Override
+            public int selectMove(Board board, int[] buffer) {
+                int count = MoveGenerator.generateLegalMoves(board, buffer);
+                int best = buffer[0];
+                int bestScore = Integer.MIN_VALUE;
+                for (int i = 0; i < count; i++) {
+                    board.makeMove(buffer[i]);
+                    int score = board.hasLegalMove() || !board.isInCheck(board.getSideToMove())
+                            ? -evaluator.evaluate(board) : SearchEngine.MATE;
+                    board.unmakeMove();
+                    if (score > bestScore) {
+                        best = buffer[i];
+                        bestScore = score;
+                    }
+                }
+                return best;
+            }
+        }
+
+        // The search engine with its own small transposition table, to a fixed depth or for a fixed time
+        static final class SearchStrategy implements MoveStrategy {
+            private static final int TABLE_SIZE_MB = 8;
+
+            private final SearchEngine engine = new SearchEngine(new TranspositionTable(TABLE_SIZE_MB));
+            private final long millis;
+            private final int depth;
+
+            SearchStrategy(long millis, int depth) {
+                this.millis = millis;
+                this.depth = depth;
+            }
+
+            @Override
+            public int selectMove(Board board, int[] buffer) {
+                int move = engine.search(board, millis, depth).bestMove;
+                if (move == 0) {
+                    MoveGenerator.generateLegalMoves(board, buffer);
+                    move = buffer[0];
+                }
+                return move;
+            }
+        }
+
+        // Sequential probability ratio test of "the first side is elo0 stronger" (H0) against "elo1 stronger" (H1)
+        // on win/draw/loss counts, with the usual normal approximation of the log-likelihood ratio
+        static final class Sprt {
+            private final double elo0;
+            private final double elo1;
+            private final double lowerBound;
+            private final double upperBound;
+
+            Sprt(double elo0, double elo1, double alpha, double beta) {
+                this.elo0 = elo0;
+                this.elo1 = elo1;
+                this.lowerBound = Math.log(beta / (1 - alpha));
+                this.upperBound = Math.log((1 - beta) / alpha);
+            }
+
+            double logLikelihoodRatio(long wins, long draws, long losses) {
+                double w = wins;
+                double d = draws;
+                double l = losses;
+                if (wins == 0 || draws == 0 || losses == 0) {
+                    w += 0.5; // An empty count would make the variance 0
+                    d += 0.5;
+                    l += 0.5;
+                }
+                double games = w + d + l;
+                double score = (w + d / 2) / games;
+                double variance = (w + d / 4) / games - score * score;
+                double s0 = expectedScore(elo0);
+                double s1 = expectedScore(elo1);
+                return games * (s1 - s0) * (2 * score - s0 - s1) / (2 * variance);
+            }
+
+            // 1 once H1 is accepted, -1 once H0 is, 0 while more games are needed
+            int decide(long wins, long draws, long losses) {
+                double llr = logLikelihoodRatio(wins, draws, losses);
+                return llr >= upperBound ? 1 : llr <= lowerBound ? -1 : 0;
+            }
+
+            static double expectedScore(double elo) {
+                return 1 / (1 + Math.pow(10, -elo / 400));
+            }
+
+            @Override
+            public String toString() {
+                return "SPRT elo0 " + elo0 + " elo1 " + elo1 + " bounds [" + String.format("%.2f", lowerBound) + ", "
+                        + String.format("%.2f", upperBound) + "]";
+            }
+        }
+
+        // Plays games between two strategies on a pool of worker threads. Openings are played in pairs with the
+        // colors swapped. Each game is written to the results file as one line as soon as it ends, so nothing
+        // but the counters stays in memory, and the match stops early once the SPRT has decided.
+        static final class MatchRunner {
+            static final int MAX_PLIES = 400; // longer games are adjudicated as draws
+            private static final String HEADER = "# game\topening\twhite\tresult\ttermination\tplies\tmoves";
+            private static final Player WHITE_PLAYER = new Player("White", Color.WHITE);
+            private static final Player BLACK_PLAYER = new Player("Black", Color.BLACK);
+
+            private final Supplier<MoveStrategy> first;
+            private final Supplier<MoveStrategy> second;
+            private final List<String> openings; // FEN
+            private final Sprt sprt;
+            private final AtomicInteger nextGame = new AtomicInteger();
+            private final LatencyHistogram moveLatency = new LatencyHistogram();
+            private final LongAdder moveNanos = new LongAdder();
+            private volatile boolean stopped;
+
+            // Guarded by this
+            private BufferedWriter out;
+            private long wins; // for the first strategy
+            private long draws;
+            private long losses;
+            private long plies;
+            private int verdict;
+            private long startNanos;
+            private long elapsedNanos;
+
+            MatchRunner(Supplier<MoveStrategy> first, Supplier<MoveStrategy> second, List<String> openings, Sprt sprt) {
+                this.first = first;
+                this.second = second;
+                this.openings = openings;
+                this.sprt = sprt;
+            }
+
+            // Play up to `games` games on `threads` workers, appending each to `results`
+            public void run(int games, int threads, Path results) throws IOException, InterruptedException {
+                ExecutorService workers = Executors.newFixedThreadPool(threads);
+                try (BufferedWriter writer = Files.newBufferedWriter(results)) {
+                    synchronized (this) {
+                        out = writer;
+                        out.write(HEADER);
+                        out.newLine();
+                        startNanos = System.nanoTime();
+                    }
+                    List<Future<?>> done = new ArrayList<>(threads);
+                    for (int i = 0; i < threads; i++) {
+                        done.add(workers.submit(() -> {
+                            MoveStrategy firstStrategy = first.get();
+                            MoveStrategy secondStrategy = second.get();
+                            Board board = new Board();
+                            int[] buffer = new int[MoveGenerator.MAX_MOVES];
+                            StringBuilder line = new StringBuilder(4096);
+                            for (int n = nextGame.getAndIncrement(); n < games && !stopped; n = nextGame.getAndIncrement()) {
+                                playGame(n, board, firstStrategy, secondStrategy, buffer, line);
+                            }
+                            return null;
+                        }));
+                    }
+                    workers.shutdown();
+                    try {
+                        for (Future<?> result : done) {
+                            result.get();
+                        }
+                    } catch (ExecutionException e) {
+                        stopped = true;
+                        throw new IllegalStateException("Match worker failed", e.getCause());
+                    }
+                } finally {
+                    workers.shutdownNow();
+                    synchronized (this) {
+                        elapsedNanos = System.nanoTime() - startNanos;
+                        out = null;
+                    }
+                }
+            }
+
+            private void playGame(int number, Board board, MoveStrategy firstStrategy, MoveStrategy secondStrategy,
+                                  int[] buffer, StringBuilder line) throws IOException {
+                int opening = (number / 2) % openings.size();
+                boolean firstIsWhite = number % 2 == 0;
+                Fen.load(board, openings.get(opening));
+                Game game = new Game(board, WHITE_PLAYER, BLACK_PLAYER);
+                line.setLength(0);
+                line.append('\t');
+                int start = line.length();
+                String termination = null;
+                int ply = 0;
+                if (!board.hasLegalMove()) {
+                    termination = board.isInCheck(board.getSideToMove()) ? "checkmate" : "stalemate";
+                }
+                while (termination == null) {
+                    if (board.getHalfmoveClock() >= 100) {
+                        termination = "fifty moves";
+                    } else if (board.isRepetition()) {
+                        termination = "repetition";
+                    } else if (isInsufficientMaterial(board)) {
+                        termination = "material";
+                    } else if (ply >= MAX_PLIES) {
+                        termination = "length";
+                    } else {
+                        boolean whiteToMove = board.getSideToMove() == Color.WHITE;
+                        MoveStrategy strategy = whiteToMove == firstIsWhite ? firstStrategy : secondStrategy;
+                        long moveStart = System.nanoTime();
+                        int move = strategy.selectMove(board, buffer);
+                        long nanos = System.nanoTime() - moveStart;
+                        moveLatency.record(nanos);
+                        moveNanos.add(nanos);
+                        if (line.length() > start) {
+                            line.append(' ');
+                        }
+                        line.append(Move.toString(move));
+                        if (game.makeMove(move) != MoveStatus.SUCCESS) {
+                            termination = "illegal move";
+                            break; // The side to move forfeits
+                        }
+                        ply++;
+                        if (game.isGameFinished()) {
+                            termination = game.getState() == GameState.CHECKMATE ? "checkmate" : "stalemate";
+                        }
+                    }
+                }
+                // Checkmate and illegal moves lose for the side to move; everything else is a draw
+                boolean decisive = termination.equals("checkmate") || termination.equals("illegal move");
+                int whiteScore = !decisive ? 0 : board.getSideToMove() == Color.WHITE ? -1 : 1;
+                String result = whiteScore > 0 ? "1-0" : whiteScore < 0 ? "0-1" : "1/2-1/2";
+                line.insert(0, number + "\t" + opening + "\t" + (firstIsWhite ? "first" : "second") + "\t" + result + "\t"
+                        + termination + "\t" + ply);
+                record(line, firstIsWhite ? whiteScore : -whiteScore, ply);
+            }
+
+            // Neither side can mate: bare kings, or a single minor piece against a bare king
+            private static boolean isInsufficientMaterial(Board board) {
+                long occupied = board.getOccupied();
+                int count = Long.bitCount(occupied);
+                if (count > 3) {
+                    return false;
+                }
+                long minors = 0;
+                for (int color = 0; color < 2; color++) {
+                    minors |= board.pieceBitboards[color][PieceType.KNIGHT.ordinal()]
+                            | board.pieceBitboards[color][PieceType.BISHOP.ordinal()];
+                }
+                return count == 2 || Long.bitCount(minors) == 1;
+            }
+
+            private synchronized void record(CharSequence line, int firstScore, int gamePlies) throws IOException {
+                out.append(line);
+                out.newLine();
+                out.flush();
+                if (firstScore > 0) {
+                    wins++;
+                } else if (firstScore < 0) {
+                    losses++;
+                } else {
+                    draws++;
+                }
+                plies += gamePlies;
+                if (sprt != null && verdict == 0) {
+                    verdict = sprt.decide(wins, draws, losses);
+                    stopped = verdict != 0;
+                }
+            }
+
+            public synchronized long getGames() {
+                return wins + draws + losses;
+            }
+
+            // Results, game rate, move latency and the SPRT state, for the first strategy
+            public synchronized void appendSummary(StringBuilder sb) {
+                long games = wins + draws + losses;
+                long elapsed = elapsedNanos > 0 ? elapsedNanos : System.nanoTime() - startNanos;
+                double score = games == 0 ? 0.5 : (wins + draws / 2.0) / games;
+                sb.append(games).append(" games: +").append(wins).append(" =").append(draws).append(" -").append(losses)
+                        .append(String.format(", score %.1f%%", 100 * score));
+                if (score > 0 && score < 1) {
+                    sb.append(String.format(", Elo %+.0f", -400 * Math.log10(1 / score - 1)));
+                }
+                sb.append(String.format("%n%.1f games/s, %.1f plies per game, %d ms elapsed", games * 1e9 / elapsed,
+                        games == 0 ? 0.0 : (double) plies / games, elapsed / 1_000_000));
+                long moves = moveLatency.getCount();
+                sb.append(String.format("%nmove latency: mean %.1f us, ", moves == 0 ? 0.0 : moveNanos.sum() / 1000.0 / moves));
+                moveLatency.appendMicros(sb);
+                if (sprt != null) {
+                    sb.append(String.format("%n%s: llr %.2f", sprt, sprt.logLikelihoodRatio(wins, draws, losses)))
+                            .append(verdict > 0 ? ", H1 accepted" : verdict < 0 ? ", H0 accepted" : ", undecided");
+                }
+            }
+        }
+
+        // Class for Player
+        static class Player {
+            private String name;
+            private Color color;
+
+            public Player(String name, Color color) {
+                this.name = name;
+                this.color = color;
+            }
+
+            public Color getColor() {
+                return color;
+            }
+
+            public String getName() {
+                return name;
+            }
+        }
+
+        public static class GameInitializer {
+            private GameInitializer(){}
+
+            // Put a piece on the square it was created with
+            private static void place(Board board, Piece piece) {
+                board.placePiece(piece, piece.getPosition());
+            }
+
+            public static void initializePieces(Board board) {
+                // Place Kings
+                place(board, new King(Color.WHITE, Position.of(7, 4)));
+                place(board, new King(Color.BLACK, Position.of(0, 4)));
+
+                // Place Queens
+                place(board, new Queen(Color.WHITE, Position.of(7, 3)));
+                place(board, new Queen(Color.BLACK, Position.of(0, 3)));
+
+                // Place Bishops
+                place(board, new Bishop(Color.WHITE, Position.of(7, 2)));
+                place(board, new Bishop(Color.WHITE, Position.of(7, 5)));
+                place(board, new Bishop(Color.BLACK, Position.of(0, 2)));
+                place(board, new Bishop(Color.BLACK, Position.of(0, 5)));
+
+                // Place Rooks
+                place(board, new Rook(Color.WHITE, Position.of(7, 0)));
+                place(board, new Rook(Color.WHITE, Position.of(7, 7)));
+                place(board, new Rook(Color.BLACK, Position.of(0, 0)));
+                place(board, new Rook(Color.BLACK, Position.of(0, 7)));
+
+                // Place Knights
+                place(board, new Knight(Color.WHITE, Position.of(7, 1)));
+                place(board, new Knight(Color.WHITE, Position.of(7, 6)));
+                place(board, new Knight(Color.BLACK, Position.of(0, 1)));
+                place(board, new Knight(Color.BLACK, Position.of(0, 6)));
+
+                // Place Pawns
+                for (int col = 0; col < 8; col++) {
+                    place(board, new Pawn(Color.WHITE, Position.of(6, col)));
+                    place(board, new Pawn(Color.BLACK, Position.of(1, col)));
+                }
+
+                // White moves first and both sides may still castle
+                board.setSideToMove(Color.WHITE);
+                board.setCastlingRights(Board.ALL_CASTLING);
+                board.setEnPassantSquare(-1);
+                board.setHalfmoveClock(0);
+            }
+        }
+
+
+        // Class representing the Game
+        static class Game {
+            private final Board board;
+            private final Player whitePlayer;
+            private final Player blackPlayer;
+            private Player currentPlayer;
+            private GameState state = GameState.IN_PROGRESS;
+            private final int[] legalMoves = new int[MoveGenerator.MAX_MOVES];
+            private MoveJournal journal; // accepted moves are logged here when set
+            private int journalId;
+
+            public Game(Player whitePlayer, Player blackPlayer) {
+                this(new Board(), whitePlayer, blackPlayer);
+            }
+
+            // Game on a board supplied by the caller, e.g. a pooled one from GameManager
+            public Game(Board board, Player whitePlayer, Player blackPlayer) {
+                this.board = board;
+                this.whitePlayer = whitePlayer;
+                this.blackPlayer = blackPlayer;
+                // White starts first, unless the board was set up with Black to move
+                this.currentPlayer = board.getSideToMove() == Color.WHITE ? whitePlayer : blackPlayer;
+            }
+
+            // Log every move accepted from now on to `journal`, starting from the current position; returns the game's id
+            public int attachJournal(MoveJournal journal) {
+                journalId = journal.startGame(board);
+                this.journal = journal;
+                return journalId;
+            }
+
+            // Go on logging a game recovered from `journal` under its old id
+            public void resumeJournal(MoveJournal journal, int id) {
+                this.journal = journal;
+                this.journalId = id;
+            }
+
+            // Switch turns between players
+            public void switchTurn() {
+                currentPlayer = (currentPlayer == whitePlayer) ? blackPlayer : whitePlayer;
+            }
+
+            // Method to handle a move
+            public MoveStatus makeMove(Piece piece, Position newPosition) {
+                if (!MoveMetrics.enabled) {
+                    return tryMove(piece, newPosition);
+                }
+                int move = Move.encode(piece.position.square, newPosition.square, 0); // Read first: the piece moves
+                long start = System.nanoTime();
+                MoveStatus status = tryMove(piece, newPosition);
+                MoveMetrics.METRICS.recordMakeMove(status, piece.typeIndex, move, System.nanoTime() - start);
+                return status;
+            }
+
+            private MoveStatus tryMove(Piece piece, Position newPosition) {
+                if (state != GameState.IN_PROGRESS) {
+                    return MoveStatus.FAILURE;
+                }
+                if (piece.getColor() != currentPlayer.getColor()) {
+                    return MoveStatus.NOT_YOUR_TURN;
+                }
+                // Check if move is valid: it must be one of the legal moves, so the own king is never left in check.
+                // Castling is the king's two-square move and a pawn reaching the last rank becomes a queen.
+                int from = piece.position.square;
+                int to = newPosition.square;
+                int count = MoveGenerator.generateLegalMoves(board, legalMoves);
+                for (int i = 0; i < count; i++) {
+                    if (Move.from(legalMoves[i]) == from && Move.to(legalMoves[i]) == to) {
+                        return playMove(legalMoves[i]); // Queen comes first among promotions
+                    }
+                }
+                return MoveStatus.ILLEGAL_MOVE;
+            }
+
+            // Play an encoded move, e.g. one chosen by the engine; it must be legal in the current position
+            public MoveStatus makeMove(int move) {
+                if (!MoveMetrics.enabled) {
+                    return tryMove(move);
+                }
+                Piece piece = board.getPiece(Move.from(move));
+                int pieceType = piece == null ? -1 : piece.typeIndex; // Read first: a promotion replaces the piece
+                long start = System.nanoTime();
+                MoveStatus status = tryMove(move);
+                MoveMetrics.METRICS.recordMakeMove(status, pieceType, move, System.nanoTime() - start);
+                return status;
+            }
+
+            private MoveStatus tryMove(int move) {
+                if (state != GameState.IN_PROGRESS) {
+                    return MoveStatus.FAILURE;
+                }
+                Piece piece = board.getPiece(Move.from(move));
+                if (piece == null) {
+                    return MoveStatus.NO_PIECE;
+                }
+                if (piece.getColor() != currentPlayer.getColor()) {
+                    return MoveStatus.NOT_YOUR_TURN;
+                }
+                int count = MoveGenerator.generateLegalMoves(board, legalMoves);
+                for (int i = 0; i < count; i++) {
+                    if (legalMoves[i] == move) {
+                        return playMove(move);
+                    }
+                }
+                return MoveStatus.ILLEGAL_MOVE;
+            }
+
+            private MoveStatus playMove(int move) {
+                board.makeMove(move);
+                // After move, check if the opponent is checkmated or stalemated
+                checkGameOver();
+                if (journal != null) {
+                    try {
+                        journal.append(journalId, move, state != GameState.IN_PROGRESS); // On disk before makeMove returns
+                    } catch (UncheckedIOException | IllegalStateException e) {
+                        // Not durable, so not made: take it back and leave the turn where it was
+                        board.unmakeMove();
+                        state = GameState.IN_PROGRESS;
+                        return MoveStatus.NOT_SAVED;
+                    }
+                }
+
+                // Switch turn only if the game isn't finished
+                if (state == GameState.IN_PROGRESS) {
+                    switchTurn();
+                }
+                return MoveStatus.SUCCESS;
+            }
+
+            // End the game if the side now to move has no legal move: checkmate if in check, else stalemate
+            private void checkGameOver() {
+                long start = MoveMetrics.enabled ? System.nanoTime() : 0;
+                if (!board.hasLegalMove()) {
+                    state = board.isInCheck(board.getSideToMove()) ? GameState.CHECKMATE : GameState.STALEMATE;
+                }
+                if (start != 0) {
+                    MoveMetrics.METRICS.recordGameOverCheck(System.nanoTime() - start);
+                }
+            }
+
+            public Player getCurrentPlayer() {
+                return currentPlayer;
+            }
+
+            public Board getBoard() {
+                return board;
+            }
+
+            public boolean isGameFinished() {
+                return state != GameState.IN_PROGRESS;
+            }
+
+            public GameState getState() {
+                return state;
+            }
+
+            // The player who gave checkmate, null otherwise; the loser is the one left to move
+            public Player getWinner() {
+                return state == GameState.CHECKMATE ? currentPlayer : null;
+            }
+        }
+
+        // Runs many games at once, each on its own virtual thread with its own Board.
+        // Nothing is shared between games except the pool of cleared boards waiting to be reused.
+        static class GameManager implements AutoCloseable {
+            private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+            private final ConcurrentLinkedQueue<Board> boardPool = new ConcurrentLinkedQueue<>();
+            private final AtomicInteger activeGames = new AtomicInteger();
+
+            // Start a game from the initial position and drive it with `play` on a new virtual thread.
+            // The board goes back to the pool when `play` returns, so it must not keep the Game.
+            public <T> Future<T> submit(Player whitePlayer, Player blackPlayer, Function<Game, T> play) {
+                return executor.submit(() -> {
+                    Board board = acquireBoard();
+                    activeGames.incrementAndGet();
+                    try {
+                        GameInitializer.initializePieces(board);
+                        return play.apply(new Game(board, whitePlayer, blackPlayer));
+                    } finally {
+                        activeGames.decrementAndGet();
+                        releaseBoard(board);
+                    }
+                });
+            }
+
+            public int getActiveGames() {
+                return activeGames.get();
+            }
+
+            private Board acquireBoard() {
+                Board board = boardPool.poll();
+                return board != null ? board : new Board();
+            }
+
+            private void releaseBoard(Board board) {
+                board.clear();
+                boardPool.offer(board);
+            }
+
+            // Wait for running games to finish and stop accepting new ones
+            @Override
+            public void close() {
+                executor.close();
+            }
+        }
+
+        // Append-only write-ahead journal of accepted moves, so that games in progress survive a crash.
+        // Records from all games go into one buffer; a writer thread turns whatever has gathered into one frame,
+        // writes it with a single FileChannel write and one fsync (group commit), and then releases every game
+        // waiting on it. A frame is its payload length, a CRC32C of the payload, and the records, which are an
+        // int (game id << 2 | type) followed by a 16-bit move for MOVE, or the starting FEN for START.
+        static final class MoveJournal implements AutoCloseable {
+            private static final int START = 0;
+            private static final int MOVE = 1;
+            private static final int END = 2;
+            private static final int FRAME_HEADER = 8;
+            private static final int BUFFER_SIZE = 1 << 20; // largest frame
+            private static final long WINDOW_SIZE = 64L << 20; // mapped at a time during recovery
+
+            private final FileChannel channel;
+            private final ReentrantLock lock = new ReentrantLock(); // not synchronized: waiters may be virtual threads
+            private final Condition pending = lock.newCondition(); // records are waiting for the writer
+            private final Condition written = lock.newCondition(); // a frame reached the disk, or failed to
+            private final Thread writer;
+            private final LatencyHistogram syncLatency = new LatencyHistogram(); // write + fsync per frame
+
+            // Guarded by lock
+            private ByteBuffer filling = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            private ByteBuffer writing = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            private long appended; // records appended so far
+            private long durable; // records known to be on disk
+            private int nextGameId;
+            private long frames;
+            private long bytes;
+            private IOException failure;
+            private boolean closed;
+
+            private MoveJournal(FileChannel channel, int nextGameId) {
+                this.channel = channel;
+                this.nextGameId = nextGameId;
+                filling.position(FRAME_HEADER);
+                writer = Thread.ofPlatform().name("move-journal").daemon().start(this::writeFrames);
+            }
+
+            // Open the journal at `file`, creating it if needed, and replay it first. Every game that did not end
+            // is passed to `recovered` with its board, which is reused for the next game: copy it to keep it.
+            // A frame torn by the crash is cut off, and new records are appended after the last good one.
+            static MoveJournal open(Path file, ObjIntConsumer<Board> recovered) throws IOException {
+                FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+                try {
+                    Recovery recovery = new Recovery();
+                    long end = recovery.scan(channel);
+                    recovery.replay(recovered);
+                    channel.truncate(end);
+                    channel.position(end);
+                    return new MoveJournal(channel, recovery.games);
+                } catch (IOException | RuntimeException e) {
+                    channel.close();
+                    throw e;
+                }
+            }
+
+            // Log the start of a game from the board's position and return the id of the game
+            public int startGame(Board board) {
+                StringBuilder fen = new StringBuilder(90);
+                Fen.write(board, fen);
+                byte[] text = Fen.START_POSITION.contentEquals(fen) ? new byte[0] : fen.toString().getBytes(StandardCharsets.US_ASCII);
+                lock.lock();
+                try {
+                    int id = nextGameId++;
+                    reserve(6 + text.length);
+                    filling.putInt(id << 2 | START).putShort((short) text.length).put(text);
+                    awaitDurable(++appended);
+                    return id;
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            // Log a move of game `id`, and its end if `last`; returns once both are on disk
+            public void append(int id, int move, boolean last) {
+                lock.lock();
+                try {
+                    reserve(last ? 10 : 6);
+                    filling.putInt(id << 2 | MOVE).putShort((short) move);
+                    if (last) {
+                        filling.putInt(id << 2 | END);
+                    }
+                    awaitDurable(++appended);
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            // Log that game `id` is over, e.g. abandoned, so recovery skips it
+            public void endGame(int id) {
+                lock.lock();
+                try {
+                    reserve(4);
+                    filling.putInt(id << 2 | END);
+                    awaitDurable(++appended);
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            // Wait, holding the lock, until the current frame has room for `size` more bytes
+            private void reserve(int size) {
+                checkOpen();
+                while (filling.remaining() < size) {
+                    pending.signal();
+                    written.awaitUninterruptibly();
+                    checkOpen();
+                }
+            }
+
+            private void checkOpen() {
+                if (failure != null) {
+                    throw new UncheckedIOException("Move journal failed", failure);
+                }
+                if (closed) {
+                    throw new IllegalStateException("Move journal is closed");
+                }
+            }
+
+            private void awaitDurable(long record) {
+                pending.signal();
+                while (durable < record && failure == null) {
+                    written.awaitUninterruptibly();
+                }
+                if (durable < record) {
+                    throw new UncheckedIOException("Move journal failed", failure);
+                }
+            }
+
+            private void writeFrames() {
+                CRC32C crc = new CRC32C();
+                while (true) {
+                    ByteBuffer frame;
+                    long records;
+                    lock.lock();
+                    try {
+                        while (filling.position() == FRAME_HEADER && !closed) {
+                            pending.awaitUninterruptibly();
+                        }
+                        if (filling.position() == FRAME_HEADER) {
+                            return; // Closed and nothing left to write
+                        }
+                        frame = filling;
+                        filling = writing;
+                        filling.clear().position(FRAME_HEADER);
+                        writing = frame;
+                        records = appended;
+                    } finally {
+                        lock.unlock();
+                    }
+
+                    long start = System.nanoTime();
+                    IOException error = null;
+                    frame.flip();
+                    crc.reset();
+                    crc.update(frame.slice(FRAME_HEADER, frame.limit() - FRAME_HEADER));
+                    frame.putInt(0, frame.limit() - FRAME_HEADER).putInt(4, (int) crc.getValue());
+                    int size = frame.limit();
+                    try {
+                        while (frame.hasRemaining()) {
+                            channel.write(frame);
+                        }
+                        channel.force(false);
+                    } catch (IOException e) {
+                        error = e;
+                    }
+                    syncLatency.record(System.nanoTime() - start);
+
+                    lock.lock();
+                    try {
+                        if (error != null) {
+                            failure = error; // Nothing after this frame can be durable either
+                        } else {
+                            durable = records;
+                            frames++;
+                            bytes += size;
+                        }
+                        written.signalAll();
+                        if (error != null) {
+                            return;
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            }
+
+            // Frames, bytes written and fsync latency so far
+            public void appendStatistics(StringBuilder sb) {
+                lock.lock();
+                try {
+                    sb.append(durable).append(" records in ").append(frames).append(" frames (")
+                            .append(frames == 0 ? 0 : durable / frames).append(" per fsync), ").append(bytes).append(" bytes");
+                } finally {
+                    lock.unlock();
+                }
+                sb.append("; write + fsync ");
+                syncLatency.appendMicros(sb);
+            }
+
+            // Write what is left and stop the writer; appends after this fail
+            @Override
+            public void close() throws IOException {
+                lock.lock();
+                try {
+                    closed = true;
+                    pending.signal();
+                } finally {
+                    lock.unlock();
+                }
+                try {
+                    writer.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                channel.close();
+            }
+
+            // Games read back from a journal: per game id its starting FEN (null for the standard start),
+            // its moves so far, and whether it ended
+            private static final class Recovery {
+                int games;
+                String[] fens = new String[1024];
+                short[][] moves = new short[1024][];
+                int[] moveCounts = new int[1024];
+                boolean[] started = new boolean[1024];
+                boolean[] ended = new boolean[1024];
+
+                // Read every intact frame; returns the offset after the last one
+                long scan(FileChannel channel) throws IOException {
+                    long size = channel.size();
+                    long offset = 0;
+                    CRC32C crc = new CRC32C();
+                    while (offset < size) {
+                        int length = (int) Math.min(WINDOW_SIZE, size - offset);
+                        MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+                        int position = 0;
+                        while (position + FRAME_HEADER <= length) {
+                            int payload = window.getInt(position);
+                            if (payload <= 0 || payload > BUFFER_SIZE - FRAME_HEADER) {
+                                return offset + position; // Torn or garbage: the journal ends here
+                            }
+                            if (position + FRAME_HEADER + payload > length) {
+                                break; // Continues past the window
+                            }
+                            ByteBuffer records = window.slice(position + FRAME_HEADER, payload);
+                            crc.reset();
+                            crc.update(records.duplicate());
+                            if ((int) crc.getValue() != window.getInt(position + 4)) {
+                                return offset + position;
+                            }
+                            read(records);
+                            position += FRAME_HEADER + payload;
+                        }
+                        if (position == 0 || offset + length == size && position < length) {
+                            return offset + position; // A frame that runs past the end of the file
+                        }
+                        offset += position;
+                    }
+                    return offset;
+                }
+
+                private void read(ByteBuffer records) {
+                    while (records.hasRemaining()) {
+                        int header = records.getInt();
+                        int id = header >>> 2;
+                        ensureCapacity(id);
+                        switch (header & 3) {
+                            case START: {
+                                byte[] text = new byte[records.getShort() & 0xFFFF];
+                                records.get(text);
+                                fens[id] = text.length == 0 ? null : new String(text, StandardCharsets.US_ASCII);
+                                started[id] = true;
+                                games = Math.max(games, id + 1);
+                                break;
+                            }
+                            case MOVE: {
+                                short[] list = moves[id];
+                                if (list == null) {
+                                    list = moves[id] = new short[64];
+                                } else if (moveCounts[id] == list.length) {
+                                    list = moves[id] = Arrays.copyOf(list, list.length * 2);
+                                }
+                                list[moveCounts[id]++] = records.getShort();
+                                break;
+                            }
+                            case END:
+                                ended[id] = true;
+                                moves[id] = null; // Not needed any more
+                                break;
+                            default:
+                                throw new IllegalStateException("Unknown journal record " + header);
+                        }
+                    }
+                }
+
+                private void ensureCapacity(int id) {
+                    if (id < started.length) {
+                        return;
+                    }
+                    int size = Math.max(started.length * 2, id + 1);
+                    fens = Arrays.copyOf(fens, size);
+                    moves = Arrays.copyOf(moves, size);
+                    moveCounts = Arrays.copyOf(moveCounts, size);
+                    started = Arrays.copyOf(started, size);
+                    ended = Arrays.copyOf(ended, size);
+                }
+
+                // Play every game that did not end into one board and hand it on
+                void replay(ObjIntConsumer<Board> recovered) {
+                    Board board = new Board();
+                    for (int id = 0; id < games; id++) {
+                        if (!started[id] || ended[id]) {
+                            continue;
+                        }
+                        Fen.load(board, fens[id] == null ? Fen.START_POSITION : fens[id]);
+                        short[] list = moves[id];
+                        for (int i = 0; i < moveCounts[id]; i++) {
+                            board.makeMove(list[i] & 0xFFFF); // Accepted once already, so no legality check
+                        }
+                        recovered.accept(board, id);
+                    }
+                }
+            }
+
+            // Play `games` concurrent games of `movesPerGame` random moves each, first without and then with the
+            // journal, report the cost of journaling, then time recovering all games from the file
+            static void runBenchmark(Path file, int games, int movesPerGame) throws IOException {
+                Files.deleteIfExists(file);
+                long[] keys = new long[games];
+                long plain = playRandomGames(null, games, movesPerGame, keys);
+                System.out.printf("%d games x %d moves without journal: %.0f moves/s%n", games, movesPerGame,
+                        (double) games * movesPerGame * 1e9 / plain);
+
+                long journaled;
+                StringBuilder statistics = new StringBuilder();
+                try (MoveJournal journal = open(file, (board, id) -> { })) {
+                    journaled = playRandomGames(journal, games, movesPerGame, keys);
+                    journal.appendStatistics(statistics);
+                }
+                double movesPerSecond = (double) games * movesPerGame * 1e9 / journaled;
+                System.out.printf("with journal: %.0f moves/s, %.1f us per move, %.1f bytes per move%n", movesPerSecond,
+                        (journaled - plain) / 1000.0 / ((double) games * movesPerGame),
+                        (double) Files.size(file) / ((double) games * movesPerGame));
+                System.out.println(statistics);
+
+                long[] recoveredKeys = new long[games];
+                Arrays.fill(recoveredKeys, -1);
+                long start = System.nanoTime();
+                long[] counts = new long[3]; // games, moves, ids this run never started
+                open(file, (board, id) -> {
+                    if (id >= games) {
+                        counts[2]++;
+                        return;
+                    }
+                    recoveredKeys[id] = board.getZobristKey();
+                    counts[0]++;
+                    counts[1] += board.getHistorySize();
+                }).close();
+                long elapsed = System.nanoTime() - start;
+                long mismatches = counts[2];
+                for (int i = 0; i < games; i++) {
+                    mismatches += keys[i] == recoveredKeys[i] ? 0 : 1;
+                }
+                System.out.printf("recovered %d live games, %d moves, from %d bytes in %d ms (%.0f moves/s), %d mismatches%n",
+                        counts[0], counts[1], Files.size(file), elapsed / 1_000_000, counts[1] * 1e9 / elapsed, mismatches);
+            }
+
+            // Nanoseconds to play the games, each on its own virtual thread; `keys` gets each game's final Zobrist
+            // key by journal id, or stays -1 for games that ended early, which recovery skips
+            private static long playRandomGames(MoveJournal journal, int games, int movesPerGame, long[] keys) {
+                Arrays.fill(keys, -1);
+                long start = System.nanoTime();
+                try (GameManager manager = new GameManager()) {
+                    for (int n = 0; n < games; n++) {
+                        int seed = n;
+                        manager.submit(new Player("White", Color.WHITE), new Player("Black", Color.BLACK), game -> {
+                            int id = journal == null ? seed : game.attachJournal(journal);
+                            SplittableRandom random = new SplittableRandom(seed);
+                            int[] moves = new int[MoveGenerator.MAX_MOVES];
+                            Board board = game.getBoard();
+                            for (int ply = 0; ply < movesPerGame && !game.isGameFinished(); ply++) {
+                                int count = MoveGenerator.generateLegalMoves(board, moves);
+                                game.makeMove(moves[random.nextInt(count)]);
+                            }
+                            if (!game.isGameFinished()) {
+                                keys[id] = board.getZobristKey();
+                            }
+                            return null;
+                        });
+                    }
+                }
+                return System.nanoTime() - start;
+            }
+        }
+
+        // Where a front end sends what the player sees. Game logic only returns MoveStatus and GameState;
+        // turning them into text is up to the sink.
+        interface RenderSink {
+            void render(Board board);
+
+            void message(CharSequence text);
+
+            // "White wins! Checkmate." or "Stalemate! The game is a draw.", null while the game goes on
+            static String describeResult(Game game) {
+                switch (game.getState()) {
+                    case CHECKMATE: return game.getWinner().getName() + " wins! Checkmate.";
+                    case STALEMATE: return "Stalemate! The game is a draw.";
+                    default: return null;
+                }
+            }
+        }
+
+        // Sink for a PrintStream: every render is built in one reusable StringBuilder and written with a single call
+        static final class ConsoleSink implements RenderSink {
+            private final PrintStream out;
+            private final StringBuilder text = new StringBuilder(256);
+
+            ConsoleSink(PrintStream out) {
+                this.out = out;
+            }
+
+            @Override
+            public void render(Board board) {
+                text.setLength(0);
+                board.appendBoard(text);
+                out.append(text);
+            }
+
+            @Override
+            public void message(CharSequence message) {
+                text.setLength(0);
+                text.append(message).append('\n');
+                out.append(text);
+            }
+        }
+
+        // Sink appending everything to a caller-owned StringBuilder, e.g. the reply to a network client
+        static final class BufferSink implements RenderSink {
+            private final StringBuilder text;
+
+            BufferSink(StringBuilder text) {
+                this.text = text;
+            }
+
+            @Override
+            public void render(Board board) {
+                board.appendBoard(text);
+            }
+
+            @Override
+            public void message(CharSequence message) {
+                text.append(message).append('\n');
+            }
+        }
+
+        // The game of one text-protocol client. Lines are moves ("e2 e4") or the commands "board", "fen",
+        // "new" and "quit"; every reply goes to the sink and ends with an empty line.
+        static final class GameSession {
+            private final RenderSink sink;
+            private final Board board = new Board();
+            private final Player whitePlayer = new Player("White", Color.WHITE);
+            private final Player blackPlayer = new Player("Black", Color.BLACK);
+            private final StringBuilder fen = new StringBuilder(90);
+            private Game game;
+            private MoveProcessor processor;
+
+            GameSession(RenderSink sink) {
+                this.sink = sink;
+                newGame();
+            }
+
+            private void newGame() {
+                Fen.load(board, Fen.START_POSITION);
+                game = new Game(board, whitePlayer, blackPlayer);
+                processor = new MoveProcessor(board, game);
+            }
+
+            // Handle one line of input; returns false once the client asked to quit
+            public boolean handle(CharSequence line) {
+                boolean open = respond(line);
+                sink.message("");
+                return open;
+            }
+
+            private boolean respond(CharSequence line) {
+                if ("quit".contentEquals(line)) {
+                    sink.message("Bye.");
+                    return false;
+                }
+                if ("board".contentEquals(line)) {
+                    sink.render(board);
+                } else if ("fen".contentEquals(line)) {
+                    fen.setLength(0);
+                    Fen.write(board, fen);
+                    sink.message(fen);
+                } else if ("new".contentEquals(line)) {
+                    newGame();
+                    sink.render(board);
+                } else if ("metrics".contentEquals(line)) {
+                    StringBuilder dump = new StringBuilder(1024);
+                    MoveMetrics.METRICS.appendTo(dump);
+                    dump.setLength(dump.length() - 1); // The reply adds its own line end
+                    sink.message(dump);
+                } else {
+                    MoveStatus status = processor.processMove(line);
+                    if (status != MoveStatus.SUCCESS) {
+                        sink.message(status.getMessage());
+                        return true;
+                    }
+                    sink.render(board);
+                    if (game.isGameFinished()) {
+                        sink.message(RenderSink.describeResult(game));
+                    }
+                }
+                return true;
+            }
+
+            public Game getGame() {
+                return game;
+            }
+        }
+
+        // Non-blocking text front end: one selector thread serves every client, each playing its own
+        // GameSession. Replies are built in the client's StringBuilder and copied into its output buffer,
+        // which is written as far as the socket accepts; the rest goes out when it becomes writable.
+        static final class TextServer implements AutoCloseable {
+            private static final int MAX_LINE = 256;
+
+            private final Selector selector;
+            private final ServerSocketChannel server;
+            private volatile boolean running = true;
+
+            TextServer(int port) throws IOException {
+                selector = Selector.open();
+                server = ServerSocketChannel.open();
+                server.bind(new InetSocketAddress(port));
+                server.configureBlocking(false);
+                server.register(selector, SelectionKey.OP_ACCEPT);
+            }
+
+            public int getPort() {
+                return server.socket().getLocalPort();
+            }
+
+            // Serve clients on the calling thread until close() is called
+            public void run() throws IOException {
+                while (running) {
+                    selector.select();
+                    for (Iterator<SelectionKey> keys = selector.selectedKeys().iterator(); keys.hasNext(); ) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        try {
+                            if (!key.isValid()) {
+                                continue;
+                            }
+                            if (key.isAcceptable()) {
+                                accept();
+                                continue;
+                            }
+                            Client client = (Client) key.attachment();
+                            if (key.isReadable() && !client.read()) {
+                                client.close();
+                                continue;
+                            }
+                            if (key.isValid() && !client.flush()) {
+                                client.close();
+                            }
+                        } catch (IOException e) {
+                            ((Client) key.attachment()).close(); // Only client keys do I/O that can fail
+                        }
+                    }
+                }
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                }
+                selector.close();
+            }
+
+            private void accept() throws IOException {
+                SocketChannel channel = server.accept();
+                if (channel == null) {
+                    return;
+                }
+                channel.configureBlocking(false);
+                Client client = new Client(channel);
+                client.key = channel.register(selector, SelectionKey.OP_READ, client);
+                client.session.handle("board");
+                client.queueReply();
+                client.flush();
+            }
+
+            @Override
+            public void close() {
+                running = false;
+                selector.wakeup();
+            }
+
+            private static final class Client {
+                private final SocketChannel channel;
+                private final ByteBuffer input = ByteBuffer.allocate(1024);
+                private ByteBuffer output = ByteBuffer.allocate(1024);
+                private final StringBuilder line = new StringBuilder(MAX_LINE);
+                private final StringBuilder reply = new StringBuilder(1024);
+                private final GameSession session = new GameSession(new BufferSink(reply));
+                private SelectionKey key;
+                private boolean closing;
+
+                Client(SocketChannel channel) {
+                    this.channel = channel;
+                    output.flip(); // Empty, ready to be drained
+                }
+
+                // Read what is available and handle every complete line; false once the client is gone
+                boolean read() throws IOException {
+                    if (channel.read(input) < 0) {
+                        return false;
+                    }
+                    input.flip();
+                    while (input.hasRemaining() && !closing) {
+                        char c = (char) (input.get() & 0xFF);
+                        if (c == '\n') {
+                            int end = line.length();
+                            if (end > 0 && line.charAt(end - 1) == '\r') {
+                                line.setLength(end - 1);
+                            }
+                            closing = !session.handle(line);
+                            line.setLength(0);
+                            queueReply();
+                        } else if (line.length() < MAX_LINE) {
+                            line.append(c); // Longer lines are cut off and then rejected as invalid moves
+                        }
+                    }
+                    input.clear();
+                    return true;
+                }
+
+                // Move the reply text into the output buffer as ASCII bytes
+                void queueReply() {
+                    output.compact();
+                    if (output.remaining() < reply.length()) {
+                        ByteBuffer larger = ByteBuffer.allocate(Math.max(output.capacity() * 2, output.position() + reply.length()));
+                        output.flip();
+                        larger.put(output);
+                        output = larger;
+                    }
+                    for (int i = 0; i < reply.length(); i++) {
+                        output.put((byte) reply.charAt(i));
+                    }
+                    output.flip();
+                    reply.setLength(0);
+                }
+
+                // Write pending output; returns false once a quitting client has been sent everything
+                boolean flush() throws IOException {
+                    channel.write(output);
+                    if (output.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return true;
+                    }
+                    key.interestOps(SelectionKey.OP_READ);
+                    return !closing;
+                }
+
+                void close() {
+                    key.cancel();
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                        // Already gone
+                    }
+                }
+            }
+        }
+
+        // Lock-free latency histogram: 16 linear sub-buckets per power of two, so a percentile is off by at
+        // most 1/16 of its value. Recording is a single atomic increment, safe from any number of threads.
+        static final class LatencyHistogram {
+            private static final int SUB_BITS = 4;
+            private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+            private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+            private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+            public void record(long value) {
+                value = Math.max(0, value);
+                counts.incrementAndGet(bucket(value));
+                max.accumulate(value);
+            }
+
+            private static int bucket(long value) {
+                if (value < SUB_BUCKETS) {
+                    return (int) value;
+                }
+                int exponent = 63 - Long.numberOfLeadingZeros(value);
+                return ((exponent - SUB_BITS + 1) << SUB_BITS) + (int) ((value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1));
+            }
+
+            // Largest value that falls into a bucket
+            private static long highestValue(int bucket) {
+                int group = bucket >>> SUB_BITS;
+                long sub = bucket & (SUB_BUCKETS - 1);
+                if (group == 0) {
+                    return sub;
+                }
+                return ((SUB_BUCKETS + sub + 1) << (group - 1)) - 1;
+            }
+
+            public long getCount() {
+                long total = 0;
+                for (int i = 0; i < counts.length(); i++) {
+                    total += counts.get(i);
+                }
+                return total;
+            }
+
+            // Value below which the fraction `p` of the recorded values lie, e.g. 0.99
+            public long getPercentile(double p) {
+                long total = getCount();
+                if (total == 0) {
+                    return 0;
+                }
+                long target = Math.max(1, (long) Math.ceil(p * total));
+                long seen = 0;
+                for (int i = 0; i < counts.length(); i++) {
+                    seen += counts.get(i);
+                    if (seen >= target) {
+                        return Math.min(highestValue(i), max.get());
+                    }
+                }
+                return max.get();
+            }
+
+            public long getMax() {
+                return max.get();
+            }
+
+            public void reset() {
+                for (int i = 0; i < counts.length(); i++) {
+                    counts.set(i, 0);
+                }
+                max.reset();
+            }
+
+            // "p50 12.3 us, p99 ..., p999 ..., max ..." for values in nanoseconds
+            public void appendMicros(StringBuilder sb) {
+                sb.append("p50 ").append(getPercentile(0.50) / 1000.0).append(" us, p99 ").append(getPercentile(0.99) / 1000.0)
+                        .append(" us, p999 ").append(getPercentile(0.999) / 1000.0).append(" us, max ").append(getMax() / 1000.0)
+                        .append(" us");
+            }
+        }
+
+        // Counters and latency histograms for move processing and search, plus the matching JFR events.
+        // Off unless the JVM is started with -Dmetrics=true or it is switched on through JMX; while off, every
+        // hook costs one volatile read and a not-taken branch. Counters are LongAdders so that game threads
+        // updating them at once do not contend on a single cache line.
+        static final class MoveMetrics implements MoveMetricsMBean {
+            static final String OBJECT_NAME = "org.example:type=MoveMetrics";
+            private static final MoveStatus[] STATUSES = MoveStatus.values();
+            static final MoveMetrics METRICS = new MoveMetrics(); // after STATUSES, which it uses
+
+            static volatile boolean enabled = Boolean.getBoolean("metrics");
+
+            private final LongAdder[] processed = adders(STATUSES.length); // processMove results
+            private final LongAdder[] made = adders(STATUSES.length); // Game.makeMove results
+            private final LongAdder[] movedPieces = adders(Board.PIECE_TYPES.length); // successful moves per piece type
+            private final LongAdder[] boardMoves = adders(Board.PIECE_TYPES.length); // Board.movePiece calls per piece type
+            private final LongAdder searches = new LongAdder();
+            private final LongAdder searchNodes = new LongAdder();
+            private final LatencyHistogram processLatency = new LatencyHistogram();
+            private final LatencyHistogram makeLatency = new LatencyHistogram();
+            private final LatencyHistogram boardMoveLatency = new LatencyHistogram();
+            private final LatencyHistogram gameOverLatency = new LatencyHistogram();
+            private final LatencyHistogram searchLatency = new LatencyHistogram();
+
+            private MoveMetrics() {}
+
+            private static LongAdder[] adders(int count) {
+                LongAdder[] adders = new LongAdder[count];
+                for (int i = 0; i < count; i++) {
+                    adders[i] = new LongAdder();
+                }
+                return adders;
+            }
+
+            // Make the metrics visible to JMX clients such as jconsole
+            static void register() {
+                try {
+                    ManagementFactory.getPlatformMBeanServer().registerMBean(METRICS, new ObjectName(OBJECT_NAME));
+                } catch (JMException e) {
+                    throw new IllegalStateException("Cannot register " + OBJECT_NAME, e);
+                }
+            }
+
+            void recordProcessMove(MoveStatus status, long nanos) {
+                processed[status.ordinal()].increment();
+                processLatency.record(nanos);
+            }
+
+            // `pieceType` is -1 when there was no piece on the from square
+            void recordMakeMove(MoveStatus status, int pieceType, int move, long nanos) {
+                made[status.ordinal()].increment();
+                if (status == MoveStatus.SUCCESS) {
+                    movedPieces[pieceType].increment();
+                }
+                makeLatency.record(nanos);
+                MoveEvent event = new MoveEvent();
+                if (event.shouldCommit()) {
+                    event.move = Move.toString(move);
+                    event.piece = pieceType < 0 ? null : Board.PIECE_TYPES[pieceType].name();
+                    event.status = status.name();
+                    event.nanos = nanos;
+                    event.commit();
+                }
+            }
+
+            void recordBoardMove(int pieceType, long nanos) {
+                boardMoves[pieceType].increment();
+                boardMoveLatency.record(nanos);
+            }
+
+            void recordGameOverCheck(long nanos) {
+                gameOverLatency.record(nanos);
+            }
+
+            void recordSearch(SearchResult result, long nanos) {
+                searches.increment();
+                searchNodes.add(result.nodes);
+                searchLatency.record(nanos);
+                SearchEvent event = new SearchEvent();
+                if (event.shouldCommit()) {
+                    event.bestMove = Move.toString(result.bestMove);
+                    event.score = result.score;
+                    event.depth = result.depth;
+                    event.nodes = result.nodes;
+                    event.source = result.source;
+                    event.nanos = nanos;
+                    event.commit();
+                }
+            }
+
+            @Override
+            public boolean isEnabled() {
+                return enabled;
+            }
+
+            @Override
+            public void setEnabled(boolean on) {
+                enabled = on;
+            }
+
+            @Override
+            public long getMovesProcessed() {
+                return sum(processed);
+            }
+
+            @Override
+            public long getMovesMade() {
+                return sum(made);
+            }
+
+            @Override
+            public long getIllegalMoves() {
+                return made[MoveStatus.ILLEGAL_MOVE.ordinal()].sum();
+            }
+
+            @Override
+            public long getSearches() {
+                return searches.sum();
+            }
+
+            @Override
+            public long getSearchNodes() {
+                return searchNodes.sum();
+            }
+
+            @Override
+            public double getMoveP50Micros() {
+                return makeLatency.getPercentile(0.50) / 1000.0;
+            }
+
+            @Override
+            public double getMoveP99Micros() {
+                return makeLatency.getPercentile(0.99) / 1000.0;
+            }
+
+            @Override
+            public double getMoveP999Micros() {
+                return makeLatency.getPercentile(0.999) / 1000.0;
+            }
+
+            @Override
+            public String getDump() {
+                StringBuilder sb = new StringBuilder(1024);
+                appendTo(sb);
+                return sb.toString();
+            }
+
+            @Override
+            public void reset() {
+                for (LongAdder[] group : new LongAdder[][] {processed, made, movedPieces, boardMoves}) {
+                    for (LongAdder adder : group) {
+                        adder.reset();
+                    }
+                }
+                searches.reset();
+                searchNodes.reset();
+                for (LatencyHistogram histogram : new LatencyHistogram[] {processLatency, makeLatency, boardMoveLatency,
+                        gameOverLatency, searchLatency}) {
+                    histogram.reset();
+                }
+            }
+
+            private static long sum(LongAdder[] adders) {
+                long total = 0;
+                for (LongAdder adder : adders) {
+                    total += adder.sum();
+                }
+                return total;
+            }
+
+            // Plain-text dump: one line per counter group and per histogram
+            public void appendTo(StringBuilder sb) {
+                sb.append("metrics ").append(enabled ? "on" : "off").append('\n');
+                appendCounts(sb, "processMove", processed);
+                appendCounts(sb, "makeMove", made);
+                sb.append("moved pieces:");
+                appendByPiece(sb, movedPieces);
+                sb.append("Board.movePiece:");
+                appendByPiece(sb, boardMoves);
+                sb.append("searches: ").append(searches.sum()).append(", nodes ").append(searchNodes.sum()).append('\n');
+                appendLatency(sb, "processMove", processLatency);
+                appendLatency(sb, "makeMove", makeLatency);
+                appendLatency(sb, "Board.movePiece", boardMoveLatency);
+                appendLatency(sb, "game over check", gameOverLatency);
+                appendLatency(sb, "search", searchLatency);
+            }
+
+            private static void appendCounts(StringBuilder sb, String name, LongAdder[] byStatus) {
+                sb.append(name).append(": ").append(sum(byStatus));
+                for (MoveStatus status : STATUSES) {
+                    long count = byStatus[status.ordinal()].sum();
+                    if (count > 0) {
+                        sb.append(", ").append(status).append(' ').append(count);
+                    }
+                }
+                sb.append('\n');
+            }
+
+            private static void appendByPiece(StringBuilder sb, LongAdder[] byType) {
+                for (int type = 0; type < byType.length; type++) {
+                    sb.append(' ').append(Board.PIECE_TYPES[type]).append(' ').append(byType[type].sum());
+                }
+                sb.append('\n');
+            }
+
+            private static void appendLatency(StringBuilder sb, String name, LatencyHistogram histogram) {
+                sb.append(name).append(" latency (").append(histogram.getCount()).append("): ");
+                histogram.appendMicros(sb);
+                sb.append('\n');
+            }
+        }
+
+        // Management interface of MoveMetrics; JMX requires it to be public and named after the class
+        public interface MoveMetricsMBean {
+            boolean isEnabled();
+
+            void setEnabled(boolean enabled);
+
+            long getMovesProcessed();
+
+            long getMovesMade();
+
+            long getIllegalMoves();
+
+            long getSearches();
+
+            long getSearchNodes();
+
+            double getMoveP50Micros();
+
+            double getMoveP99Micros();
+
+            double getMoveP999Micros();
+
+            String getDump();
+
+            void reset();
+        }
+
+        // One Game.makeMove call, for Flight Recorder
+        @Name("org.example.Move")
+        @Label("Move")
+        @Category("Chess")
+        static final class MoveEvent extends Event {
+            @Label("Move")
+            String move;
+
+            @Label("Piece")
+            String piece;
+
+            @Label("Status")
+            String status;
+
+            @Label("Duration")
+            @Timespan(Timespan.NANOSECONDS)
+            long nanos;
+        }
+
+        // One engine search, for Flight Recorder
+        @Name("org.example.Search")
+        @Label("Search")
+        @Category("Chess")
+        static final class SearchEvent extends Event {
+            @Label("Best Move")
+            String bestMove;
+
+            @Label("Score")
+            int score;
+
+            @Label("Depth")
+            int depth;
+
+            @Label("Nodes")
+            long nodes;
+
+            @Label("Source")
+            String source;
+
+            @Label("Duration")
+            @Timespan(Timespan.NANOSECONDS)
+            long nanos;
+        }
+
+        // Blocking TCP game server: every connection gets a virtual thread and its own GameSession, so moves go
+        // through Game.makeMove with its turn checks. An idle session costs only its parked thread and its board.
+        // Move latency is measured on the server from a complete input line to the flushed reply.
+        static final class GameServer implements AutoCloseable {
+            private final ServerSocket server;
+            private final ExecutorService sessions = Executors.newVirtualThreadPerTaskExecutor();
+            private final AtomicInteger activeSessions = new AtomicInteger();
+            private final AtomicInteger peakSessions = new AtomicInteger();
+            private final LongAdder totalSessions = new LongAdder();
+            private final LatencyHistogram moveLatency = new LatencyHistogram();
+
+            GameServer(int port) throws IOException {
+                server = new ServerSocket(port, 16384);
+                Thread.ofPlatform().name("game-server-accept").daemon().start(this::acceptConnections);
+            }
+
+            public int getPort() {
+                return server.getLocalPort();
+            }
+
+            private void acceptConnections() {
+                while (!server.isClosed()) {
+                    try {
+                        Socket socket = server.accept();
+                        sessions.submit(() -> serve(socket));
+                    } catch (IOException e) {
+                        // Closed while waiting, the loop ends
+                    }
+                }
+            }
+
+            private void serve(Socket socket) {
+                peakSessions.accumulateAndGet(activeSessions.incrementAndGet(), Math::max);
+                totalSessions.increment();
+                try (Socket s = socket) {
+                    s.setTcpNoDelay(true);
+                    InputStream in = s.getInputStream();
+                    OutputStream out = s.getOutputStream();
+                    StringBuilder reply = new StringBuilder(1024);
+                    StringBuilder line = new StringBuilder(256);
+                    GameSession session = new GameSession(new BufferSink(reply));
+                    byte[] input = new byte[1024];
+                    byte[] output = new byte[1024];
+
+                    session.handle("board");
+                    output = send(out, reply, output);
+                    for (int read = in.read(input); read >= 0; read = in.read(input)) {
+                        for (int i = 0; i < read; i++) {
+                            char c = (char) (input[i] & 0xFF);
+                            if (c != '\n') {
+                                if (line.length() < 256) {
+                                    line.append(c);
+                                }
+                                continue;
+                            }
+                            long start = System.nanoTime();
+                            if (line.length() > 0 && line.charAt(line.length() - 1) == '\r') {
+                                line.setLength(line.length() - 1);
+                            }
+                            boolean open;
+                            if ("stats".contentEquals(line)) {
+                                appendStatistics(reply);
+                                reply.append("\n\n");
+                                open = true;
+                            } else {
+                                open = session.handle(line);
+                            }
+                            line.setLength(0);
+                            output = send(out, reply, output);
+                            moveLatency.record(System.nanoTime() - start);
+                            if (!open) {
+                                return;
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    // Client went away
+                } finally {
+                    activeSessions.decrementAndGet();
+                }
+            }
+
+            // Write the reply as ASCII in one call and clear it; returns the (possibly grown) byte buffer
+            private static byte[] send(OutputStream out, StringBuilder reply, byte[] bytes) throws IOException {
+                int length = reply.length();
+                if (bytes.length < length) {
+                    bytes = new byte[Math.max(length, bytes.length * 2)];
+                }
+                for (int i = 0; i < length; i++) {
+                    bytes[i] = (byte) reply.charAt(i);
+                }
+                out.write(bytes, 0, length);
+                reply.setLength(0);
+                return bytes;
+            }
+
+            public int getActiveSessions() {
+                return activeSessions.get();
+            }
+
+            public LatencyHistogram getMoveLatency() {
+                return moveLatency;
+            }
+
+            public void appendStatistics(StringBuilder sb) {
+                sb.append("sessions: ").append(activeSessions.get()).append(" active, ").append(peakSessions.get())
+                        .append(" peak, ").append(totalSessions.sum()).append(" total; ")
+                        .append(moveLatency.getCount()).append(" requests, latency ");
+                moveLatency.appendMicros(sb);
+            }
+
+            // Stop accepting, disconnect every client and wait for the sessions to end
+            @Override
+            public void close() throws IOException {
+                server.close();
+                sessions.shutdownNow();
+                sessions.close();
+            }
+
+            // Open `clients` connections to a server in this process and, once all are connected, have each
+            // shuffle its knights out and back `rounds` times. Reports the client round trip and server latency.
+            static void runLoadTest(int clients, int rounds) throws IOException, InterruptedException {
+                String[] moves = {"g1 f3", "g8 f6", "f3 g1", "f6 g8"};
+                LatencyHistogram roundTrip = new LatencyHistogram();
+                LongAdder failures = new LongAdder();
+                CountDownLatch connected = new CountDownLatch(clients);
+                try (GameServer gameServer = new GameServer(0)) {
+                    long start = System.nanoTime();
+                    long connectedNanos;
+                    try (ExecutorService players = Executors.newVirtualThreadPerTaskExecutor()) {
+                        for (int c = 0; c < clients; c++) {
+                            players.submit(() -> {
+                                boolean counted = false; // this client's count on `connected` is taken
+                                try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), gameServer.getPort())) {
+                                    socket.setTcpNoDelay(true);
+                                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+                                    OutputStream out = socket.getOutputStream();
+                                    readReply(in);
+                                    connected.countDown();
+                                    counted = true;
+                                    connected.await();
+                                    for (int r = 0; r < rounds; r++) {
+                                        for (String move : moves) {
+                                            long sent = System.nanoTime();
+                                            out.write((move + "\n").getBytes(StandardCharsets.US_ASCII));
+                                            if (!readReply(in)) {
+                                                failures.increment();
+                                            }
+                                            roundTrip.record(System.nanoTime() - sent);
+                                        }
+                                    }
+                                    out.write("quit\n".getBytes(StandardCharsets.US_ASCII));
+                                    readReply(in);
+                                } catch (IOException e) {
+                                    failures.increment();
+                                    if (!counted) {
+                                        connected.countDown(); // Do not keep the others waiting for a client that failed
+                                    }
+                                }
+                                return null;
+                            });
+                        }
+                        connected.await();
+                        connectedNanos = System.nanoTime() - start;
+                        gameServer.getMoveLatency().reset(); // Only the moves, not the greetings
+                    } // Closing the executor waits for every client to finish
+                    long elapsed = Math.max(1, System.nanoTime() - start - connectedNanos);
+
+                    StringBuilder sb = new StringBuilder(256);
+                    sb.append(clients).append(" concurrent games connected in ").append(connectedNanos / 1_000_000)
+                            .append(" ms, ").append(roundTrip.getCount() * 1_000_000_000L / elapsed).append(" moves/s, ")
+                            .append(failures.sum()).append(" failures\nround trip: ");
+                    roundTrip.appendMicros(sb);
+                    sb.append("\nserver ");
+                    gameServer.appendStatistics(sb);
+                    System.out.println(sb);
+                }
+            }
+
+            // Read one reply up to its terminating empty line; true if it was a board, i.e. the move was played
+            private static boolean readReply(BufferedReader in) throws IOException {
+                boolean board = false;
+                for (String line = in.readLine(); line != null && !line.isEmpty(); line = in.readLine()) {
+                    board |= line.startsWith("  a b");
+                }
+                return board;
+            }
+        }
+
+        static class MoveProcessor {
+            private final Board board;
+            private final Game game;
+
+            public MoveProcessor(Board board, Game game) {
+                this.board = board;
+                this.game = game;
+            }
+
+            // Play a move typed as two squares, e.g. "e2 e4". Nothing is printed: the status says what happened.
+            public MoveStatus processMove(CharSequence move) {
+                if (!MoveMetrics.enabled) {
+                    return parseAndMove(move);
+                }
+                long start = System.nanoTime();
+                MoveStatus status = parseAndMove(move);
+                MoveMetrics.METRICS.recordProcessMove(status, System.nanoTime() - start);
+                return status;
+            }
+
+            private MoveStatus parseAndMove(CharSequence move) {
+                // Two squares separated by one space, read in place instead of splitting into Strings
+                int end = move.length();
+                while (end > 0 && move.charAt(end - 1) == ' ') {
+                    end--; // Trailing spaces are ignored
+                }
+                int space = -1;
+                for (int i = 0; i < end; i++) {
+                    if (move.charAt(i) == ' ') {
+                        if (space >= 0) {
+                            return MoveStatus.INVALID_FORMAT;
+                        }
+                        space = i;
+                    }
+                }
+                if (space < 0) {
+                    return MoveStatus.INVALID_FORMAT;
+                }
+
+                Position from = parsePosition(move, 0, space);
+                Position to = parsePosition(move, space + 1, end);
+                if (from == null || to == null) {
+                    return MoveStatus.INVALID_POSITION;
+                }
+
+                Piece piece = board.getPiece(from);
+                if (piece == null) {
+                    return MoveStatus.NO_PIECE;
+                }
+
+                return game.makeMove(piece, to);
+            }
+
+            // Convert the user input (e.g., "e2") between start and end into a board position
+            private Position parsePosition(CharSequence input, int start, int end) {
+                if (end - start != 2) return null;
+                char col = input.charAt(start);
+                char row = input.charAt(start + 1);
+                int rowPos = 8 - Character.getNumericValue(row);
+                int colPos = col - 'a';
+                if (rowPos < 0 || rowPos > 7 || colPos < 0 || colPos > 7) {
+                    return null;
+                }
+                return Position.of(rowPos, colPos); // Shared instance, nothing allocated per move
+            }
+        }
+
+        public static void main(String[] args) throws IOException {
+            // -Dmetrics=true turns on move and search metrics, -Dmetrics=false only offers the switch through JMX
+            if (System.getProperty("metrics") != null) {
+                MoveMetrics.register();
+            }
+
+            // "fen <file>" loads every position of a FEN file and reports the loading speed
+            if (args.length > 1 && args[0].equals("fen")) {
+                long start = System.nanoTime();
+                long[] sideToMoveWhite = {0};
+                long count = Fen.forEachPosition(Paths.get(args[1]), new Board(), board -> {
+                    if (board.getSideToMove() == Color.WHITE) {
+                        sideToMoveWhite[0]++;
+                    }
+                });
+                long elapsed = Math.max(1, System.nanoTime() - start);
+                System.out.println(count + " positions (" + sideToMoveWhite[0] + " white to move) in " + elapsed / 1_000_000
+                        + " ms, " + count * 1_000_000_000L / elapsed + " positions/s");
+                return;
+            }
+
+            // "pgn <file> [threads]" replays every game of a PGN file and reports the illegal moves
+            if (args.length > 1 && args[0].equals("pgn")) {
+                int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+                long start = System.nanoTime();
+                PgnSummary summary;
+                try {
+                    summary = Pgn.validate(Paths.get(args[1]), threads, System.out::println);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                long elapsed = Math.max(1, System.nanoTime() - start);
+                System.out.println(summary + " in " + elapsed / 1_000_000 + " ms on " + threads + " threads, "
+                        + summary.games.sum() * 1_000_000_000L / elapsed + " games/s");
+                return;
+            }
+
+            // "store <pgn file> <data file>" converts the valid games of a PGN file to the binary game store
+            // and compares loading every game from both
+            if (args.length > 2 && args[0].equals("store")) {
+                Path pgn = Paths.get(args[1]);
+                Path data = Paths.get(args[2]);
+                Path index = Paths.get(args[2] + ".idx");
+                try (GameStore.Writer writer = new GameStore.Writer(data, index)) {
+                    Pgn.validate(pgn, 1, error -> {}, board -> {
+                        try {
+                            writer.append(board);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+
+                long start = System.nanoTime();
+                try {
+                    Pgn.validate(pgn, 1, error -> {});
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                long pgnNanos = Math.max(1, System.nanoTime() - start);
+                start = System.nanoTime();
+                GameStore.Reader reader = new GameStore.Reader(data, index);
+                Board board = new Board();
+                long plies = 0;
+                for (long n = 0; n < reader.getGameCount(); n++) {
+                    plies += reader.readGame(n, board);
+                }
+                long storeNanos = Math.max(1, System.nanoTime() - start);
+                long pgnBytes = Files.size(pgn);
+                long storeBytes = Files.size(data) + Files.size(index);
+                System.out.println(reader.getGameCount() + " games, " + plies + " moves");
+                System.out.println("PGN:   " + pgnBytes + " bytes, loaded in " + pgnNanos / 1_000_000 + " ms");
+                System.out.println("store: " + storeBytes + " bytes, loaded in " + storeNanos / 1_000_000 + " ms ("
+                        + String.format("%.1fx smaller, %.1fx faster", (double) pgnBytes / storeBytes, (double) pgnNanos / storeNanos) + ")");
+                return;
+            }
+
+            // "serve [port]" plays games with any number of text clients over TCP, e.g. with telnet or nc
+            if (args.length > 0 && args[0].equals("serve")) {
+                try (TextServer server = new TextServer(args.length > 1 ? Integer.parseInt(args[1]) : 7777)) {
+                    System.out.println("Listening on port " + server.getPort());
+                    server.run();
+                }
+                return;
+            }
+
+            // "gameserver [port]" serves games on virtual threads and prints its statistics every 10 seconds;
+            // "gameserver load [clients] [rounds]" runs a load test against an in-process server
+            if (args.length > 0 && args[0].equals("gameserver")) {
+                try {
+                    if (args.length > 1 && args[1].equals("load")) {
+                        GameServer.runLoadTest(args.length > 2 ? Integer.parseInt(args[2]) : 5000,
+                                args.length > 3 ? Integer.parseInt(args[3]) : 25);
+                        return;
+                    }
+                    try (GameServer server = new GameServer(args.length > 1 ? Integer.parseInt(args[1]) : 7778)) {
+                        System.out.println("Listening on port " + server.getPort());
+                        StringBuilder stats = new StringBuilder(256);
+                        while (true) {
+                            Thread.sleep(10_000);
+                            stats.setLength(0);
+                            server.appendStatistics(stats);
+                            System.out.println(stats);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return;
+            }
+
+            // "validate [pairs] [threads]" measures batch move validation on growing fork-join pools
+            if (args.length > 0 && args[0].equals("validate")) {
+                BatchValidator.runScalingBenchmark(args.length > 1 ? Integer.parseInt(args[1]) : 1 << 20,
+                        args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors());
+                return;
+            }
+
+            // "book <pgn file> <book file> [plies] [min count]" builds an opening book from the first moves of every
+            // valid game; the engine and hints use it when started with -Dbook=<book file>
+            if (args.length > 2 && args[0].equals("book")) {
+                OpeningBook.Builder builder = new OpeningBook.Builder(args.length > 3 ? Integer.parseInt(args[3]) : 20);
+                long start = System.nanoTime();
+                try {
+                    Pgn.validate(Paths.get(args[1]), Runtime.getRuntime().availableProcessors(), error -> {}, builder::addGame);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                int entries = builder.write(Paths.get(args[2]), args.length > 4 ? Integer.parseInt(args[4]) : 2);
+                System.out.println(entries + " book entries written in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+                return;
+            }
+
+            // "tablebase <dir> [threads] [material...]" generates tables (KQvK, KRvK and KPvK by default) into a
+            // directory and reports their cost; the engine and hints use them when started with -Dtablebases=<dir>
+            if (args.length > 1 && args[0].equals("tablebase")) {
+                int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+                String[] names = args.length > 3 ? Arrays.copyOfRange(args, 3, args.length) : new String[] {"KQvK", "KRvK", "KPvK"};
+                Tablebases.runBenchmark(Paths.get(args[1]), threads, names);
+                return;
+            }
+
+            // "match <first> <second> <results> [games] [threads] [openings]" plays two strategies (see
+            // MoveStrategy.parse) against each other from the start position, a FEN, or a file of FENs, one per line.
+            // -Dsprt=elo0,elo1 sets the early-stop hypotheses, 0,10 by default; equal values never stop early.
+            if (args.length > 3 && args[0].equals("match")) {
+                int games = args.length > 4 ? Integer.parseInt(args[4]) : 1000;
+                int threads = args.length > 5 ? Integer.parseInt(args[5]) : Runtime.getRuntime().availableProcessors();
+                List<String> openings = new ArrayList<>();
+                if (args.length <= 6) {
+                    openings.add(Fen.START_POSITION);
+                } else if (args[6].indexOf('/') >= 0 && !Files.exists(Paths.get(args[6]))) {
+                    openings.add(args[6]);
+                } else {
+                    for (String line : Files.readAllLines(Paths.get(args[6]))) {
+                        if (!line.isBlank() && !line.startsWith("#")) {
+                            openings.add(line.trim());
+                        }
+                    }
+                }
+                String[] hypotheses = System.getProperty("sprt", "0,10").split(",");
+                Sprt sprt = new Sprt(Double.parseDouble(hypotheses[0]), Double.parseDouble(hypotheses[1]), 0.05, 0.05);
+                MatchRunner match = new MatchRunner(MoveStrategy.parse(args[1]), MoveStrategy.parse(args[2]), openings, sprt);
+                try {
+                    match.run(games, threads, Paths.get(args[3]));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                StringBuilder summary = new StringBuilder(args[1]).append(" vs ").append(args[2]).append(": ");
+                match.appendSummary(summary);
+                System.out.println(summary);
+                if (MoveMetrics.enabled) {
+                    System.out.print(MoveMetrics.METRICS.getDump());
+                }
+                return;
+            }
+
+            // "journal <file> [games] [moves]" measures journaling and recovery for many concurrent games
+            if (args.length > 1 && args[0].equals("journal")) {
+                int games = args.length > 2 ? Integer.parseInt(args[2]) : 100_000;
+                MoveJournal.runBenchmark(Paths.get(args[1]), games, args.length > 3 ? Integer.parseInt(args[3]) : 20);
+                return;
+            }
+
+            // "perft [depth]" checks and times the move generator instead of starting a game
+            if (args.length > 0 && args[0].equals("perft")) {
+                MoveGenerator.runPerftSuite(args.length > 1 ? Integer.parseInt(args[1]) : 5);
+                MoveGenerator.runMakeUnmakeCheck();
+                return;
+            }
+
+            // "bench" times move validation, moves, input parsing and perft
+            if (args.length > 0 && args[0].equals("bench")) {
+                Benchmarks.runAll();
+                return;
+            }
+
+            // "smp [threads] [depth]" measures how the parallel search scales with the thread count
+            if (args.length > 0 && args[0].equals("smp")) {
+                int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+                ParallelSearch.runScalingBenchmark(threads, args.length > 2 ? Integer.parseInt(args[2]) : 9);
+                return;
+            }
+
+            // "engine [millis]" lets the engine answer every move with the given time per move
+            boolean vsEngine = args.length > 0 && args[0].equals("engine");
+            long engineMillis = vsEngine && args.length > 1 ? Long.parseLong(args[1]) : 1000;
+            SearchEngine engine = new SearchEngine(new TranspositionTable(TranspositionTable.DEFAULT_SIZE_MB));
+            String bookFile = System.getProperty("book");
+            if (bookFile != null) {
+                engine.setBook(new OpeningBook(Paths.get(bookFile)));
+            }
+            String tablebaseDirectory = System.getProperty("tablebases");
+            if (tablebaseDirectory != null) {
+                engine.setTablebases(new Tablebases(Paths.get(tablebaseDirectory)));
+            }
+
+            // Create players
+            Scanner scanner = new Scanner(System.in);
+
+            Player whitePlayer = new Player("White", Color.WHITE);
+            Player blackPlayer = new Player("Black", Color.BLACK);
+
+            // Initialize the game
+            Game game = new Game(whitePlayer, blackPlayer);
+
+            // Place initial pieces on the board
+            Board board = game.getBoard();
+
+            // Initialize pieces using GameInitializer
+            GameInitializer.initializePieces(board);
+
+            // Everything the player sees goes through the sink
+            RenderSink sink = new ConsoleSink(System.out);
+            sink.render(board);
+
+            // Create the MoveProcessor instance
+            MoveProcessor moveProcessor = new MoveProcessor(board, game);
+
+            // Main game loop
+            while (true) {
+                Player currentPlayer = game.getCurrentPlayer();
+                sink.message(currentPlayer.getName() + "'s move (e.g., e2 e4): ");
+                String move = scanner.nextLine();
+
+                if (move.equalsIgnoreCase("stop")) {
+                    sink.message("Game has been stopped. Thank you for playing!");
+                    break; // Exit the loop
+                }
+
+                if (move.equalsIgnoreCase("metrics")) {
+                    sink.message(MoveMetrics.METRICS.getDump());
+                    continue;
+                }
+
+                if (move.equalsIgnoreCase("hint")) {
+                    sink.message("Hint: " + engine.search(board, engineMillis));
+                    continue;
+                }
+
+                MoveStatus status = moveProcessor.processMove(move);
+                if (status != MoveStatus.SUCCESS) {
+                    sink.message(status.getMessage());
+                    continue;
+                }
+                sink.render(board); // Draw updated board after each successful move
+
+                if (vsEngine && !game.isGameFinished()) {
+                    SearchResult result = engine.search(board, engineMillis);
+                    sink.message("Engine: " + result);
+                    if (result.bestMove != 0 && game.makeMove(result.bestMove) == MoveStatus.SUCCESS) {
+                        sink.render(board);
+                    }
+                }
+                if (game.isGameFinished()) {
+                    sink.message(RenderSink.describeResult(game));
                 }
 
             }